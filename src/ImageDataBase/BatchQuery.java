@@ -0,0 +1,241 @@
+package ImageDataBase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Scores a whole list of query images in one pass over the database.
+ *
+ * With d = q - x the squared distance expands to q'Aq - 2 (Aq)'x + x'Ax.
+ * Aq and q'Aq are computed once per query and x'Ax once per record, so for
+ * every (query, record) pair only a dot product is left. Records are read
+ * in blocks and each block is scored against every query before the next
+ * one is read, so a record leaves memory once per batch instead of once
+ * per query. Projected databases use the same expansion with A = I.
+ */
+public class BatchQuery {
+	private static final int BLOCK = 64;
+	private static final int MIN_RECORDS_PER_TASK = 256;
+
+	public static void run( File queryList, File database, File output, int K, int workers ) throws IOException {
+		run( queryList, HistogramDatabase.open( database ), database, output, K, workers );
+	}
+
+	/* Against an opened database, which may be a coarser view of the one in database. */
+	public static void run( File queryList, HistogramDatabase db, File database, File output, int K, int workers ) throws IOException {
+		RetrievalEngine engine = RetrievalEngine.of( db, database );
+		workers = Math.max( 1, workers );
+
+		ArrayList<String> queryUrls = new ArrayList<String>();
+		Scanner scanner = new Scanner( queryList );
+		while( scanner.hasNextLine() ) {
+			String line = scanner.nextLine().trim();
+			if( line.length() > 0 ) {
+				queryUrls.add( line );
+			}
+		}
+		scanner.close();
+
+		/* Histograms of all queries, fetched concurrently. Failed queries are left out. */
+		float[][] grams = getHistograms( engine, queryUrls, workers );
+		ArrayList<String> validUrls = new ArrayList<String>();
+		ArrayList<float[]> validGrams = new ArrayList<float[]>();
+		/* The line of every valid query, response files are numbered by it */
+		ArrayList<Integer> validLines = new ArrayList<Integer>();
+		for( int i = 0; i < grams.length; i++ ) {
+			if( grams[i] != null ) {
+				validUrls.add( queryUrls.get( i ) );
+				validGrams.add( grams[i] );
+				validLines.add( i );
+			}
+		}
+
+		QueryBlock queries = new QueryBlock( db, database, validGrams );
+		/* One leaf without a pool, a fork outside one would go to the common pool */
+		int leafSize = workers == 1 ? db.size() : Math.max( MIN_RECORDS_PER_TASK, db.size() / ( workers * 4 ) + 1 );
+		BlockScan task = new BlockScan( db, queries, K, 0, db.size(), leafSize );
+		TopK[] results;
+		if( workers == 1 ) {
+			results = task.compute();
+		} else {
+			ForkJoinPool pool = new ForkJoinPool( workers );
+			try {
+				results = pool.invoke( task );
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		if( output.getName().endsWith( ".jsonl" ) ) {
+			writeJsonLines( engine, validUrls, results, output );
+		} else {
+			/* One response file per query, numbered by its line in the query list. */
+			output.mkdirs();
+			for( int q = 0; q < results.length; q++ ) {
+				File responseFile = new File( output, "response" + ( validLines.get( q ) + 1 ) + ".html" );
+				engine.writeResponse( validUrls.get( q ), engine.getResults( results[q] ), responseFile, K );
+			}
+		}
+	}
+
+	private static float[][] getHistograms( final RetrievalEngine engine, List<String> urls, int workers ) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool( workers );
+		try {
+			List<Future<float[]>> futures = new ArrayList<Future<float[]>>();
+			for( final String url : urls ) {
+				futures.add( executor.submit( new Callable<float[]>() {
+					public float[] call() throws Exception {
+						return engine.getHistogram( url );
+					}
+				}));
+			}
+			float[][] grams = new float[ urls.size() ][];
+			for( int i = 0; i < grams.length; i++ ) {
+				try {
+					grams[i] = futures.get( i ).get();
+				} catch( ExecutionException e ) {
+					System.out.println( e.getCause() );
+				}
+			}
+			return grams;
+		} catch( InterruptedException e ) {
+			throw new IOException( e );
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void writeJsonLines( RetrievalEngine engine, List<String> queryUrls, TopK[] results, File output ) throws IOException {
+		BufferedWriter writer = new BufferedWriter( new FileWriter( output ) );
+		try {
+			for( int q = 0; q < results.length; q++ ) {
+				writer.write( Json.result( queryUrls.get( q ), engine.getResults( results[q] ) ) );
+				writer.write( "\n" );
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/* The query side of the expansion: Aq (or the projected q) and q'Aq. */
+	private static class QueryBlock {
+		final float[][] weighted;
+		final double[] selfTerms;
+		final QuadraticForm form;
+		final int dims;
+
+		QueryBlock( HistogramDatabase db, File database, List<float[]> grams ) {
+			dims = db.getDimensions();
+			form = db.isProjected() ? null : SimilarityCache.get( db, database );
+			weighted = new float[ grams.size() ][ dims ];
+			selfTerms = new double[ grams.size() ];
+			for( int q = 0; q < grams.size(); q++ ) {
+				float[] vector = grams.get( q );
+				if( db.isProjected() ) {
+					QuadraticForm.project( db.getProjection(), vector, weighted[q] );
+					vector = weighted[q];
+				} else {
+					multiply( form, vector, weighted[q] );
+				}
+				selfTerms[q] = dot( weighted[q], vector );
+			}
+		}
+
+		/* x'Ax for a record, or |x|^2 for a projected one. */
+		double selfTerm( float[] record ) {
+			if( form == null ) {
+				return dot( record, record );
+			}
+			return form.getQuadratic( record );
+		}
+	}
+
+	private static class BlockScan extends RecursiveTask<TopK[]> {
+		private static final long serialVersionUID = 1L;
+		private final HistogramDatabase db;
+		private final QueryBlock queries;
+		private final int K;
+		private final int from, to;
+		private final int leafSize;
+
+		BlockScan( HistogramDatabase db, QueryBlock queries, int K, int from, int to, int leafSize ) {
+			this.db = db;
+			this.queries = queries;
+			this.K = K;
+			this.from = from;
+			this.to = to;
+			this.leafSize = leafSize;
+		}
+
+		@Override
+		protected TopK[] compute() {
+			int numberOfQueries = queries.weighted.length;
+			if( to - from > leafSize ) {
+				int middle = ( from + to ) >>> 1;
+				BlockScan left = new BlockScan( db, queries, K, from, middle, leafSize );
+				BlockScan right = new BlockScan( db, queries, K, middle, to, leafSize );
+				left.fork();
+				TopK[] best = right.compute();
+				TopK[] other = left.join();
+				for( int q = 0; q < numberOfQueries; q++ ) {
+					best[q].addAll( other[q] );
+				}
+				return best;
+			}
+
+			TopK[] best = new TopK[ numberOfQueries ];
+			for( int q = 0; q < numberOfQueries; q++ ) {
+				best[q] = new TopK( K );
+			}
+			float[][] block = new float[ BLOCK ][ queries.dims ];
+			double[] recordTerms = new double[ BLOCK ];
+			for( int start = from; start < to; start += BLOCK ) {
+				int count = Math.min( BLOCK, to - start );
+				for( int r = 0; r < count; r++ ) {
+					db.read( start + r, block[r] );
+					recordTerms[r] = db.hasSelfTerms() ? db.getSelfTerm( start + r ) : queries.selfTerm( block[r] );
+				}
+				for( int q = 0; q < numberOfQueries; q++ ) {
+					float[] weighted = queries.weighted[q];
+					double queryTerm = queries.selfTerms[q];
+					for( int r = 0; r < count; r++ ) {
+						if( db.isDeleted( start + r ) ) {
+							continue;
+						}
+						double squared = queryTerm - 2 * dot( weighted, block[r] ) + recordTerms[r];
+						best[q].offer( (float) Math.sqrt( Math.max( 0, squared ) ), start + r );
+					}
+				}
+			}
+			return best;
+		}
+	}
+
+	private static void multiply( QuadraticForm form, float[] x, float[] out ) {
+		double[] product = new double[ x.length ];
+		form.multiply( x, product );
+		for( int i = 0; i < out.length; i++ ) {
+			out[i] = (float) product[i];
+		}
+	}
+
+	private static double dot( float[] a, float[] b ) {
+		double sum = 0;
+		for( int i = 0; i < a.length; i++ ) {
+			sum += (double) a[i] * b[i];
+		}
+		return sum;
+	}
+}
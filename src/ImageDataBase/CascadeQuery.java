@@ -0,0 +1,158 @@
+package ImageDataBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Ranks coarse to fine. The first stage scores every record at a coarse
+ * resolution summed from the stored histograms and keeps its best few
+ * thousand, every later stage rescores only the survivors of the one
+ * before, and the last one ranks them with the quadratic distance at the
+ * stored resolution.
+ *
+ * Stages are given as "rn/gn/bn:survivors" separated by commas, coarsest
+ * first, for example "1/1/1:20000,2/2/2:2000". The coarse views are built
+ * once per CascadeQuery, so one instance should serve many queries.
+ *
+ * The cascade can miss records a coarse stage ranks too low, measureRecall
+ * compares it with exhaustive scans of sampled records to tune the stages.
+ */
+public class CascadeQuery {
+	private final HistogramDatabase db;
+	private final QuadraticForm form;
+	private final HistogramDatabase[] views;
+	private final QuadraticForm[] forms;
+	private final int[][] coarseBins;
+	private final int[] survivors;
+
+	public CascadeQuery( HistogramDatabase db, File database, String stages ) throws IOException {
+		if( db.isProjected() ) {
+			throw new IOException( "A projected database cannot be ranked coarse to fine." );
+		}
+		this.db = db;
+		form = SimilarityCache.get( db, database );
+		String[] specifications = stages.split( "," );
+		views = new HistogramDatabase[ specifications.length ];
+		forms = new QuadraticForm[ specifications.length ];
+		coarseBins = new int[ specifications.length ][];
+		survivors = new int[ specifications.length ];
+		for( int s = 0; s < specifications.length; s++ ) {
+			String[] temp = specifications[s].trim().split( "[/:]" );
+			if( temp.length != 4 ) {
+				throw new IOException( "Stage " + specifications[s] + " is not rn/gn/bn:survivors." );
+			}
+			int rn = Integer.valueOf( temp[0] );
+			int gn = Integer.valueOf( temp[1] );
+			int bn = Integer.valueOf( temp[2] );
+			survivors[s] = Integer.valueOf( temp[3] );
+			if( s > 0 && survivors[s] > survivors[ s-1 ] ) {
+				throw new IOException( "Stage " + specifications[s] + " keeps more records than the stage before." );
+			}
+			views[s] = db.coarsen( rn, gn, bn, database );
+			forms[s] = SimilarityCache.get( views[s], database );
+			coarseBins[s] = HistogramDatabase.getCoarseBins( db.getRn(), db.getGn(), db.getBn(), rn, gn, bn );
+		}
+	}
+
+	/* The K best records for a histogram at the stored resolution. */
+	public TopK query( float[] histogram, int K, ForkJoinPool pool ) {
+		int[] candidates = null;
+		for( int s = 0; s < views.length; s++ ) {
+			float[] coarse = new float[ views[s].getBins() ];
+			for( int f = 0; f < histogram.length; f++ ) {
+				coarse[ coarseBins[s][f] ] += histogram[f];
+			}
+			TopK best = DatabaseScan.scan( views[s], coarse, forms[s], Math.max( K, survivors[s] ), pool, candidates, 0, null );
+			/* In record order, so the next stage reads the database front to back */
+			candidates = best.sortedRecords();
+			Arrays.sort( candidates );
+		}
+		return DatabaseScan.scan( db, histogram, form, K, pool, candidates, 0, null );
+	}
+
+	public static void run( String queryUrl, File database, File responseFile, int K, String stages, int workers ) throws IOException {
+		RetrievalEngine engine = RetrievalEngine.of( HistogramDatabase.open( database ), database );
+		CascadeQuery cascade = new CascadeQuery( engine.getDatabase(), database, stages );
+		float[] queryGram = engine.getHistogram( queryUrl );
+		ForkJoinPool pool = workers > 1 ? new ForkJoinPool( workers ) : null;
+		try {
+			TopK best = cascade.query( queryGram, K, pool );
+			engine.writeResponse( queryUrl, engine.getResults( best ), responseFile, K );
+		} finally {
+			if( pool != null ) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/*
+	 * Queries with the histograms of samples records drawn from the database
+	 * and prints the mean and lowest share of the exhaustive top K that the
+	 * cascade finds, with the time per query of both.
+	 */
+	public static void measureRecall( File database, int K, String stages, int samples, int workers ) throws IOException {
+		HistogramDatabase db = HistogramDatabase.open( database );
+		long start = System.nanoTime();
+		CascadeQuery cascade = new CascadeQuery( db, database, stages );
+		cascade.form.getKernel();
+		for( QuadraticForm stageForm : cascade.forms ) {
+			stageForm.getKernel();
+		}
+		System.out.println( "Built the coarse views in " + ( System.nanoTime() - start ) / 1000000 + " ms." );
+
+		ArrayList<Integer> live = new ArrayList<Integer>();
+		for( int i = 0; i < db.size(); i++ ) {
+			if( !db.isDeleted( i ) ) {
+				live.add( i );
+			}
+		}
+		Random random = new Random( 1 );
+		samples = Math.min( samples, live.size() );
+		ForkJoinPool pool = workers > 1 ? new ForkJoinPool( workers ) : null;
+		try {
+			float[] histogram = new float[ db.getBins() ];
+			double sum = 0, lowest = 1;
+			long cascadeTime = 0, exhaustiveTime = 0;
+			for( int q = 0; q < samples; q++ ) {
+				int record = live.remove( random.nextInt( live.size() ) );
+				db.read( record, histogram );
+
+				start = System.nanoTime();
+				TopK exact = DatabaseScan.scan( db, histogram, cascade.form, K, pool, 0, null );
+				exhaustiveTime += System.nanoTime() - start;
+				start = System.nanoTime();
+				TopK found = cascade.query( histogram, K, pool );
+				cascadeTime += System.nanoTime() - start;
+
+				Set<Integer> expected = new HashSet<Integer>();
+				for( int r : exact.sortedRecords() ) {
+					expected.add( r );
+				}
+				int hits = 0;
+				for( int r : found.sortedRecords() ) {
+					if( expected.contains( r ) ) {
+						hits++;
+					}
+				}
+				double recall = expected.isEmpty() ? 1 : (double) hits / expected.size();
+				sum += recall;
+				lowest = Math.min( lowest, recall );
+			}
+			if( samples > 0 ) {
+				System.out.println( "Recall@" + K + " " + sum / samples + " (lowest " + lowest + ") over " + samples + " queries, "
+						+ cascadeTime / 1000000.0 / samples + " ms per cascade query, "
+						+ exhaustiveTime / 1000000.0 / samples + " ms per exhaustive query." );
+			}
+		} finally {
+			if( pool != null ) {
+				pool.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package ImageDataBase;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Scores a range of database records against one query vector. Ranges are
+ * split until they are small enough, every leaf keeps its own top K and the
+ * halves are merged on the way back up.
+ *
+ * With a number of filter components the scan filters and refines: a lower
+ * bound from the leading components of the factored similarity matrix is
+ * computed first and the exact distance only for records whose bound does
+ * not exceed the current K-th best distance. Any leaf's K-th best is an upper
+ * bound of the final one, so the smallest of them is shared between leaves.
+ *
+ * A scan can be limited to a list of candidate records, as the later stages
+ * of a cascade are (see CascadeQuery).
+ *
+ * Fixed point and sparse databases are scored on what is stored, the squared
+ * distance is expanded to q'Aq - 2(Aq)'x + x'Ax with x'Ax stored for every
+ * record.
+ */
+class DatabaseScan extends RecursiveTask<TopK> {
+	private static final long serialVersionUID = 1L;
+	private static final int MIN_RECORDS_PER_TASK = 256;
+	/* Slack for the rounding difference between the bound and the exact distance of raw histograms or fixed point records. */
+	private static final float BOUND_SLACK = 1e-5f;
+
+	private final HistogramDatabase db;
+	private final float[] query;
+	private final QuadraticForm form;
+	private final int K;
+	private final int[] candidates;
+	private final int from, to;
+	private final int leafSize;
+	private final Filter filter;
+	private final Expansion expansion;
+
+	/* Query side of the expanded distance, Aq (or q when projected) and q'Aq. */
+	static class Expansion {
+		final double[] weights;
+		final double queryTerm;
+
+		Expansion( float[] query, QuadraticForm form ) {
+			weights = new double[ query.length ];
+			if( form != null ) {
+				form.multiply( query, weights );
+			}
+			double sum = 0;
+			for( int i = 0; i < query.length; i++ ) {
+				if( form == null ) {
+					weights[i] = query[i];
+				}
+				sum += weights[i] * query[i];
+			}
+			queryTerm = sum;
+		}
+
+		float distance( HistogramDatabase db, int record ) {
+			double squared = queryTerm - 2 * db.getWeightedDot( record, weights ) + db.getSelfTerm( record );
+			return (float) Math.sqrt( Math.max( 0, squared ) );
+		}
+	}
+
+	/* Shared state of a filter and refine scan. */
+	private static class Filter {
+		final int components;
+		final float[][] leading;
+		final float[] queryLeading;
+		final AtomicInteger threshold = new AtomicInteger( Float.floatToIntBits( Float.POSITIVE_INFINITY ) );
+		final AtomicLong pruned = new AtomicLong();
+
+		Filter( int components, float[][] leading, float[] queryLeading ) {
+			this.components = components;
+			this.leading = leading;
+			this.queryLeading = queryLeading;
+		}
+
+		float threshold() {
+			return Float.intBitsToFloat( threshold.get() );
+		}
+
+		void lower( float value ) {
+			while( true ) {
+				int current = threshold.get();
+				if( Float.intBitsToFloat( current ) <= value || threshold.compareAndSet( current, Float.floatToIntBits( value ) ) ) {
+					return;
+				}
+			}
+		}
+	}
+
+	/* With a form the exact quadratic distance is used, without one the Euclidean distance of projected vectors. */
+	private DatabaseScan( HistogramDatabase db, float[] query, QuadraticForm form, int K, int[] candidates, int from, int to, int leafSize, Filter filter, Expansion expansion ) {
+		this.db = db;
+		this.query = query;
+		this.form = form;
+		this.K = K;
+		this.candidates = candidates;
+		this.from = from;
+		this.to = to;
+		this.leafSize = leafSize;
+		this.filter = filter;
+		this.expansion = expansion;
+	}
+
+	public static TopK scan( HistogramDatabase db, float[] query, QuadraticForm form, int K, int workers ) {
+		return scan( db, query, form, K, workers, 0, null );
+	}
+
+	/*
+	 * components > 0 filters with that many leading components and adds the
+	 * number of pruned records to pruned. The result is the same as without.
+	 */
+	public static TopK scan( HistogramDatabase db, float[] query, QuadraticForm form, int K, int workers, int components, AtomicLong pruned ) {
+		workers = Math.max( 1, workers );
+		if( workers == 1 ) {
+			return scan( db, query, form, K, null, components, pruned );
+		}
+		ForkJoinPool pool = new ForkJoinPool( workers );
+		try {
+			return scan( db, query, form, K, pool, components, pruned );
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/* Runs on a caller owned pool, or in the calling thread when pool is null. */
+	public static TopK scan( HistogramDatabase db, float[] query, QuadraticForm form, int K, ForkJoinPool pool, int components, AtomicLong pruned ) {
+		return scan( db, query, form, K, pool, null, components, pruned );
+	}
+
+	/* Scores only the candidate records, every record when candidates is null. */
+	public static TopK scan( HistogramDatabase db, float[] query, QuadraticForm form, int K, ForkJoinPool pool, int[] candidates, int components, AtomicLong pruned ) {
+		Filter filter = null;
+		if( components > 0 ) {
+			if( form == null ) {
+				/* Projected vectors are ordered by eigenvalue, a prefix of the sum is the bound. */
+				filter = new Filter( Math.min( components, db.getDimensions() ), null, null );
+			} else if( form.isPositiveSemidefinite() ) {
+				float[][] leading = form.factor( components );
+				float[] queryLeading = new float[ leading.length ];
+				QuadraticForm.project( leading, query, queryLeading );
+				filter = new Filter( leading.length, leading, queryLeading );
+			} else {
+				System.out.println( "The similarity matrix is not positive semidefinite, every record is scored exactly." );
+			}
+		}
+		/* A few chunks per worker so idle workers can steal from slow ones, one without a pool so nothing forks. */
+		int count = candidates == null ? db.size() : candidates.length;
+		int leafSize = pool == null ? count : Math.max( MIN_RECORDS_PER_TASK, count / ( pool.getParallelism() * 4 ) + 1 );
+		Expansion expansion = db.hasSelfTerms() ? new Expansion( query, form ) : null;
+		DatabaseScan task = new DatabaseScan( db, query, form, K, candidates, 0, count, leafSize, filter, expansion );
+		TopK best;
+		if( pool == null ) {
+			best = task.compute();
+		} else {
+			best = pool.invoke( task );
+		}
+		if( filter != null && pruned != null ) {
+			pruned.addAndGet( filter.pruned.get() );
+		}
+		return best;
+	}
+
+	@Override
+	protected TopK compute() {
+		if( to - from <= leafSize ) {
+			return filter == null ? scanLeaf() : filterLeaf();
+		}
+		int middle = ( from + to ) >>> 1;
+		DatabaseScan left = new DatabaseScan( db, query, form, K, candidates, from, middle, leafSize, filter, expansion );
+		DatabaseScan right = new DatabaseScan( db, query, form, K, candidates, middle, to, leafSize, filter, expansion );
+		left.fork();
+		TopK best = right.compute();
+		best.addAll( left.join() );
+		return best;
+	}
+
+	private TopK scanLeaf() {
+		TopK best = new TopK( K );
+		float[] current = new float[ db.getDimensions() ];
+		for( int position = from; position < to; position++ ) {
+			int record = candidates == null ? position : candidates[ position ];
+			if( db.isDeleted( record ) ) {
+				continue;
+			}
+			if( expansion != null ) {
+				best.offer( expansion.distance( db, record ), record );
+				continue;
+			}
+			db.read( record, current );
+			if( form == null ) {
+				best.offer( QuadraticForm.getEuclideanDistance( query, current ), record );
+			} else {
+				best.offer( form.getDistance( query, current ), record );
+			}
+		}
+		return best;
+	}
+
+	private TopK filterLeaf() {
+		TopK best = new TopK( K );
+		float[] current = new float[ db.getDimensions() ];
+		long pruned = 0;
+		/* The expanded distance rounds differently from the bound as well */
+		float slack = expansion != null || form != null ? 1 + BOUND_SLACK : 1;
+		for( int position = from; position < to; position++ ) {
+			int record = candidates == null ? position : candidates[ position ];
+			if( db.isDeleted( record ) ) {
+				continue;
+			}
+			db.read( record, current );
+			float threshold = Math.min( best.threshold(), filter.threshold() );
+			float distance;
+			if( form == null ) {
+				/* Partial sums only grow, so the prefix is a bound and the refinement continues it. */
+				float sum = 0;
+				int k = 0;
+				for( ; k < filter.components; k++ ) {
+					float difference = query[k] - current[k];
+					sum += difference * difference;
+				}
+				if( (float) Math.sqrt( sum ) > threshold * slack ) {
+					pruned++;
+					continue;
+				}
+				for( ; k < current.length; k++ ) {
+					float difference = query[k] - current[k];
+					sum += difference * difference;
+				}
+				distance = expansion != null ? expansion.distance( db, record ) : (float) Math.sqrt( sum );
+			} else {
+				float sum = 0;
+				for( int k = 0; k < filter.components; k++ ) {
+					float[] row = filter.leading[k];
+					float projected = 0;
+					for( int i = 0; i < row.length; i++ ) {
+						projected += row[i] * current[i];
+					}
+					float difference = filter.queryLeading[k] - projected;
+					sum += difference * difference;
+				}
+				if( (float) Math.sqrt( sum ) > threshold * slack ) {
+					pruned++;
+					continue;
+				}
+				distance = expansion != null ? expansion.distance( db, record ) : form.getDistance( query, current );
+			}
+			if( best.offer( distance, record ) && best.size() == K ) {
+				filter.lower( best.threshold() );
+			}
+		}
+		filter.pruned.addAndGet( pruned );
+		return best;
+	}
+}
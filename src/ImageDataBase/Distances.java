@@ -0,0 +1,60 @@
+package ImageDataBase;
+
+/*
+ * Distance kernels between float vectors of the same length: the Euclidean
+ * one of projected vectors and graph search, the quadratic one is
+ * QuadraticForm's.
+ *
+ * The loops run four independent sums, so consecutive additions do not
+ * wait for each other and the JIT can keep the partial sums in registers.
+ * Scratch vectors come from per thread buffers instead of being allocated
+ * on every call.
+ */
+public final class Distances {
+	private static final ThreadLocal<float[]> SCRATCH = new ThreadLocal<float[]>() {
+		protected float[] initialValue() {
+			return new float[0];
+		}
+	};
+
+	private Distances() {
+	}
+
+	/* This thread's scratch vector of at least length floats, contents undefined. */
+	static float[] getScratch( int length ) {
+		float[] scratch = SCRATCH.get();
+		if( scratch.length < length ) {
+			scratch = new float[ length ];
+			SCRATCH.set( scratch );
+		}
+		return scratch;
+	}
+
+	public static float getSquaredEuclidean( float[] a, float[] b ) {
+		int n = a.length, i = 0;
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		for( ; i + 3 < n; i += 4 ) {
+			float d0 = a[i] - b[i], d1 = a[ i+1 ] - b[ i+1 ], d2 = a[ i+2 ] - b[ i+2 ], d3 = a[ i+3 ] - b[ i+3 ];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		for( ; i < n; i++ ) {
+			float d = a[i] - b[i];
+			s0 += d * d;
+		}
+		return ( s0 + s1 ) + ( s2 + s3 );
+	}
+
+	public static float getEuclidean( float[] a, float[] b ) {
+		return (float) Math.sqrt( getSquaredEuclidean( a, b ) );
+	}
+
+	/* out = a - b, out may be longer than a. */
+	static void subtract( float[] a, float[] b, float[] out ) {
+		for( int i = 0; i < a.length; i++ ) {
+			out[i] = a[i] - b[i];
+		}
+	}
+}
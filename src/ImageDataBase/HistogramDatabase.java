@@ -0,0 +1,1004 @@
+package ImageDataBase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Scanner;
+import java.util.Set;
+
+/*
+ * Binary histogram database.
+ *
+ * Layout (little endian):
+ *   header      64 bytes: magic, version, rn, gn, bn, bins, records, dims,
+ *               offsets of the url table, the vector block and the projection,
+ *               and the encoding of the vector block
+ *   url table   for each record an int byte length and the UTF-8 bytes of
+ *               "page small large"
+ *   vectors     records * dims floats, 64 byte aligned, fixed stride
+ *   projection  optional dims * bins basis of the factored similarity matrix,
+ *               when present the vector block holds projected histograms
+ *
+ * Version 1 files have no dims and projection fields, dims equals bins.
+ * Version 2 files have no encoding field and always store floats.
+ *
+ * With the 8 or 16 bit encodings every record is instead a double x'Ax (|x|^2
+ * when projected) of the stored vector x, a float scale, 4 unused bytes and
+ * dims fixed point codes, padded to a multiple of 8 bytes. Component i is
+ * code[i] * scale, the codes are unsigned for histograms and signed for
+ * projected vectors. With the stored x'Ax a distance needs only the dot
+ * product of the codes with Aq, see getWeightedDot.
+ *
+ * The sparse encoding starts the vector block with records + 1 long offsets
+ * of the records relative to the block. A record is the double x'Ax, an int
+ * count, 4 unused bytes, count ascending int bin indexes and their count
+ * float values, and the non-zero bins are all that is stored or scored.
+ *
+ * Deleted records are listed by index and page url in a "<database>.deleted"
+ * file next to the database until compact rewrites it without them. A line
+ * whose page is not the one of the record at its index is stale, left by a
+ * compact that renumbered the records but did not get to drop the file, and
+ * is ignored, so it never hides another image.
+ *
+ * The float block is memory mapped, so a scan reads the histograms in place.
+ * Text databases written by createImageDatabase can be opened as well, they
+ * are parsed once into heap buffers with the same layout.
+ *
+ * One database at a fine resolution serves every coarser one, see coarsen.
+ */
+public class HistogramDatabase {
+	public static final int MAGIC = 0x52494243; // "CBIR"
+	public static final int VERSION = 3;
+	public static final int FLOAT = 0;
+	public static final int FIXED_8 = 1;
+	public static final int FIXED_16 = 2;
+	public static final int SPARSE = 3;
+	private static final int HEADER_SIZE = 64;
+	private static final int ALIGNMENT = 64;
+	/* Self term, scale or count and padding in front of the values of a fixed point or sparse record. */
+	private static final int RECORD_HEADER = 16;
+
+	private int rn, gn, bn;
+	private int bins;
+	private int dims;
+	private float[][] projection;
+	private int records;
+	private ByteBuffer urlTable;
+	private int[] urlOffsets;
+	private String[] urlStrings;
+	private int encoding = FLOAT;
+	private FloatBuffer[] chunks;
+	private ByteBuffer[] codeChunks;
+	private int stride;
+	private int recordsPerChunk;
+	private int[] sparseChunk;
+	private int[] sparsePosition;
+	/* x'Ax of heap float records, kept by coarse views */
+	private double[] selfTerms;
+	private BitSet deleted = new BitSet();
+
+	private HistogramDatabase() {
+	}
+
+	public static HistogramDatabase open( File file ) throws IOException {
+		HistogramDatabase db = isBinary( file ) ? openBinary( file ) : readText( file );
+		db.readTombstones( file );
+		return db;
+	}
+
+	/* Opened at a coarser resolution than stored, a negative rn keeps the stored one. */
+	public static HistogramDatabase open( File file, int rn, int gn, int bn ) throws IOException {
+		HistogramDatabase db = open( file );
+		return rn < 0 ? db : db.coarsen( rn, gn, bn, file );
+	}
+
+	public static boolean isBinary( File file ) throws IOException {
+		if( file.length() < HEADER_SIZE ) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			return Integer.reverseBytes( raf.readInt() ) == MAGIC;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static HistogramDatabase openBinary( File file ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			if( header.getInt( 0 ) != MAGIC ) {
+				throw new IOException( file + " is not a histogram database." );
+			}
+			int version = header.getInt( 4 );
+			if( version < 1 || version > VERSION ) {
+				throw new IOException( "Unsupported database version " + version + " in " + file );
+			}
+			HistogramDatabase db = new HistogramDatabase();
+			db.rn = header.getInt( 8 );
+			db.gn = header.getInt( 12 );
+			db.bn = header.getInt( 16 );
+			db.bins = header.getInt( 20 );
+			db.records = header.getInt( 24 );
+			long urlTableOffset = header.getLong( 32 );
+			long vectorOffset = header.getLong( 40 );
+			long projectionOffset = 0;
+			db.dims = db.bins;
+			if( version >= 2 ) {
+				db.dims = header.getInt( 28 );
+				projectionOffset = header.getLong( 48 );
+			}
+			if( version >= 3 ) {
+				db.encoding = header.getInt( 56 );
+				if( db.encoding < FLOAT || db.encoding > SPARSE ) {
+					throw new IOException( "Unsupported encoding " + db.encoding + " in " + file );
+				}
+			}
+
+			db.urlTable = channel.map( FileChannel.MapMode.READ_ONLY, urlTableOffset, vectorOffset - urlTableOffset )
+					.order( ByteOrder.LITTLE_ENDIAN );
+			db.urlOffsets = new int[ db.records ];
+			int position = 0;
+			for( int i = 0; i < db.records; i++ ) {
+				db.urlOffsets[i] = position;
+				position += 4 + db.urlTable.getInt( position );
+			}
+
+			if( db.encoding == SPARSE ) {
+				db.mapSparse( channel, vectorOffset );
+			} else {
+				db.mapDense( channel, vectorOffset );
+			}
+			if( projectionOffset != 0 ) {
+				FloatBuffer basis = channel.map( FileChannel.MapMode.READ_ONLY, projectionOffset, 4L * db.dims * db.bins )
+						.order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer();
+				db.projection = new float[ db.dims ][ db.bins ];
+				for( int k = 0; k < db.dims; k++ ) {
+					basis.get( db.projection[k] );
+				}
+			}
+			return db;
+		} finally {
+			/* The mappings stay valid after the channel is closed. */
+			raf.close();
+		}
+	}
+
+	/* Fixed stride records, mapped in chunks of whole records below 2GB. */
+	private void mapDense( FileChannel channel, long vectorOffset ) throws IOException {
+		long stride = getStride( encoding, dims );
+		this.stride = (int) stride;
+		recordsPerChunk = (int) Math.max( 1, Integer.MAX_VALUE / Math.max( 1, stride ) );
+		int numberOfChunks = (records + recordsPerChunk - 1) / recordsPerChunk;
+		if( encoding == FLOAT ) {
+			chunks = new FloatBuffer[ numberOfChunks ];
+		} else {
+			codeChunks = new ByteBuffer[ numberOfChunks ];
+		}
+		for( int c = 0; c < numberOfChunks; c++ ) {
+			int first = c * recordsPerChunk;
+			int count = Math.min( recordsPerChunk, records - first );
+			ByteBuffer chunk = channel.map( FileChannel.MapMode.READ_ONLY, vectorOffset + first * stride, count * stride )
+					.order( ByteOrder.LITTLE_ENDIAN );
+			if( encoding == FLOAT ) {
+				chunks[c] = chunk.asFloatBuffer();
+			} else {
+				codeChunks[c] = chunk;
+			}
+		}
+	}
+
+	/* Variable length records, a chunk ends before the record that would take it past 2GB. */
+	private void mapSparse( FileChannel channel, long vectorOffset ) throws IOException {
+		LongBuffer table = channel.map( FileChannel.MapMode.READ_ONLY, vectorOffset, 8L * ( records + 1 ) )
+				.order( ByteOrder.LITTLE_ENDIAN ).asLongBuffer();
+		sparseChunk = new int[ records ];
+		sparsePosition = new int[ records ];
+		ArrayList<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+		long chunkStart = table.get( 0 );
+		for( int i = 0; i < records; i++ ) {
+			if( table.get( i + 1 ) - chunkStart > Integer.MAX_VALUE ) {
+				mapped.add( channel.map( FileChannel.MapMode.READ_ONLY, vectorOffset + chunkStart, table.get( i ) - chunkStart )
+						.order( ByteOrder.LITTLE_ENDIAN ) );
+				chunkStart = table.get( i );
+			}
+			sparseChunk[i] = mapped.size();
+			sparsePosition[i] = (int) ( table.get( i ) - chunkStart );
+		}
+		mapped.add( channel.map( FileChannel.MapMode.READ_ONLY, vectorOffset + chunkStart, table.get( records ) - chunkStart )
+				.order( ByteOrder.LITTLE_ENDIAN ) );
+		codeChunks = mapped.toArray( new ByteBuffer[ mapped.size() ] );
+	}
+
+	public static HistogramDatabase readText( File file ) throws IOException {
+		Scanner scanner = new Scanner( file );
+		try {
+			String[] temp = scanner.nextLine().trim().split(" ");
+			HistogramDatabase db = new HistogramDatabase();
+			db.rn = Integer.valueOf( temp[0] );
+			db.gn = Integer.valueOf( temp[1] );
+			db.bn = Integer.valueOf( temp[2] );
+			db.bins = 1 << ( db.rn + db.gn + db.bn );
+			db.dims = db.bins;
+
+			ArrayList<String> urls = new ArrayList<String>();
+			ArrayList<float[]> histograms = new ArrayList<float[]>();
+			while( scanner.hasNextLine() ) {
+				String[] information = scanner.nextLine().split(" ");
+				if( information.length >= db.bins + 3 ) {
+					float[] histogram = new float[ db.bins ];
+					for( int i = 0; i < db.bins; i++ ) {
+						histogram[i] = Float.valueOf( information[ i+3 ] );
+					}
+					urls.add( information[0] + " " + information[1] + " " + information[2] );
+					histograms.add( histogram );
+				}
+			}
+
+			db.records = urls.size();
+			db.urlStrings = urls.toArray( new String[ db.records ] );
+			db.recordsPerChunk = Math.max( 1, db.records );
+			/* A text database is held as one buffer */
+			long floats = (long) db.records * db.bins;
+			if( floats > Integer.MAX_VALUE - 8 ) {
+				throw new IOException( file + " holds " + db.records + " histograms of " + db.bins + " bins, " + floats
+						+ " floats, more than one buffer holds. Split it into smaller databases." );
+			}
+			FloatBuffer block = FloatBuffer.allocate( (int) floats );
+			for( float[] histogram : histograms ) {
+				block.put( histogram );
+			}
+			block.flip();
+			db.chunks = new FloatBuffer[] { block };
+			return db;
+		} finally {
+			scanner.close();
+		}
+	}
+
+	public static void write( File output, int rn, int gn, int bn, String[] urls, float[][] histograms ) throws IOException {
+		write( output, rn, gn, bn, urls, histograms, null );
+	}
+
+	/* With a projection the vectors are projected histograms of projection.length floats. */
+	public static void write( File output, int rn, int gn, int bn, final String[] urls, final float[][] vectors, float[][] projection ) throws IOException {
+		final ArrayList<Integer> present = new ArrayList<Integer>();
+		for( int i = 0; i < urls.length; i++ ) {
+			if( urls[i] != null && vectors[i] != null ) {
+				present.add( i );
+			}
+		}
+		write( output, rn, gn, bn, projection, new RecordSource() {
+			public int size() {
+				return present.size();
+			}
+			public String getUrls( int i ) {
+				return urls[ present.get( i ) ];
+			}
+			public void read( int i, float[] dst ) {
+				System.arraycopy( vectors[ present.get( i ) ], 0, dst, 0, dst.length );
+			}
+		}, FLOAT );
+	}
+
+	/* Records to write, read one at a time so they do not all need to be on the heap. */
+	interface RecordSource {
+		int size();
+		String getUrls( int i );
+		void read( int i, float[] dst );
+	}
+
+	static void write( File output, int rn, int gn, int bn, float[][] projection, RecordSource source, int encoding ) throws IOException {
+		int bins = 1 << ( rn + gn + bn );
+		int dims = projection == null ? bins : projection.length;
+		int records = source.size();
+		int stride = getStride( encoding, dims );
+		long urlTableSize = 0;
+		for( int i = 0; i < records; i++ ) {
+			urlTableSize += 4 + source.getUrls( i ).getBytes( StandardCharsets.UTF_8 ).length;
+		}
+		long urlTableOffset = HEADER_SIZE;
+		long vectorOffset = align( urlTableOffset + urlTableSize );
+		long vectorSize = (long) stride * records;
+		float[] vector = new float[ dims ];
+		long[] sparseOffsets = null;
+		if( encoding == SPARSE ) {
+			/* A first pass over the records for their sizes */
+			sparseOffsets = new long[ records + 1 ];
+			sparseOffsets[0] = 8L * ( records + 1 );
+			for( int i = 0; i < records; i++ ) {
+				source.read( i, vector );
+				sparseOffsets[ i+1 ] = sparseOffsets[i] + RECORD_HEADER + 8L * countNonZero( vector );
+			}
+			vectorSize = sparseOffsets[ records ];
+		}
+		long projectionOffset = projection == null ? 0 : align( vectorOffset + vectorSize );
+		/* The self terms of histograms are taken with the similarity matrix of the resolution */
+		QuadraticForm form = encoding != FLOAT && projection == null
+				? SimilarityCache.get( rn, gn, bn, output.getAbsoluteFile().getParentFile() ) : null;
+
+		RandomAccessFile raf = new RandomAccessFile( output, "rw" );
+		try {
+			raf.setLength( 0 );
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			header.putInt( MAGIC ).putInt( VERSION ).putInt( rn ).putInt( gn ).putInt( bn )
+					.putInt( bins ).putInt( records ).putInt( dims )
+					.putLong( urlTableOffset ).putLong( vectorOffset ).putLong( projectionOffset ).putInt( encoding );
+			header.clear();
+			channel.write( header, 0 );
+
+			ByteBuffer buffer = ByteBuffer.allocate( Math.max( 1 << 16, stride ) ).order( ByteOrder.LITTLE_ENDIAN );
+			channel.position( urlTableOffset );
+			for( int i = 0; i < records; i++ ) {
+				byte[] encoded = source.getUrls( i ).getBytes( StandardCharsets.UTF_8 );
+				if( buffer.remaining() < 4 + encoded.length ) {
+					drain( channel, buffer );
+				}
+				if( buffer.remaining() < 4 + encoded.length ) {
+					/* A url longer than the buffer, write it on its own. */
+					ByteBuffer large = ByteBuffer.allocate( 4 + encoded.length ).order( ByteOrder.LITTLE_ENDIAN );
+					large.putInt( encoded.length ).put( encoded );
+					drain( channel, large );
+				} else {
+					buffer.putInt( encoded.length ).put( encoded );
+				}
+			}
+			drain( channel, buffer );
+
+			channel.position( vectorOffset );
+			if( encoding == SPARSE ) {
+				for( int i = 0; i <= records; i++ ) {
+					if( buffer.remaining() < 8 ) {
+						drain( channel, buffer );
+					}
+					buffer.putLong( sparseOffsets[i] );
+				}
+			}
+			int[] codes = new int[ dims ];
+			for( int i = 0; i < records; i++ ) {
+				source.read( i, vector );
+				if( encoding == SPARSE ) {
+					int count = 0;
+					for( int j = 0; j < dims; j++ ) {
+						if( vector[j] != 0 ) {
+							codes[ count++ ] = j;
+						}
+					}
+					if( buffer.remaining() < RECORD_HEADER + 8 * count ) {
+						drain( channel, buffer );
+					}
+					buffer.putDouble( getSelfTerm( form, vector ) ).putInt( count ).putInt( 0 );
+					for( int k = 0; k < count; k++ ) {
+						buffer.putInt( codes[k] );
+					}
+					for( int k = 0; k < count; k++ ) {
+						buffer.putFloat( vector[ codes[k] ] );
+					}
+					continue;
+				}
+				if( encoding == FLOAT ) {
+					for( int j = 0; j < dims; j++ ) {
+						if( buffer.remaining() < 4 ) {
+							drain( channel, buffer );
+						}
+						buffer.putFloat( vector[j] );
+					}
+					continue;
+				}
+				if( buffer.remaining() < stride ) {
+					drain( channel, buffer );
+				}
+				float scale = quantize( vector, codes, encoding, projection != null );
+				/* The self term is the one of the vector the codes stand for */
+				for( int j = 0; j < dims; j++ ) {
+					vector[j] = codes[j] * scale;
+				}
+				buffer.putDouble( getSelfTerm( form, vector ) ).putFloat( scale ).putInt( 0 );
+				for( int j = 0; j < dims; j++ ) {
+					if( encoding == FIXED_8 ) {
+						buffer.put( (byte) codes[j] );
+					} else {
+						buffer.putShort( (short) codes[j] );
+					}
+				}
+				for( int j = RECORD_HEADER + dims * ( encoding == FIXED_8 ? 1 : 2 ); j < stride; j++ ) {
+					buffer.put( (byte) 0 );
+				}
+			}
+			drain( channel, buffer );
+
+			if( projection != null ) {
+				channel.position( projectionOffset );
+				for( int k = 0; k < dims; k++ ) {
+					for( int j = 0; j < bins; j++ ) {
+						if( buffer.remaining() < 4 ) {
+							drain( channel, buffer );
+						}
+						buffer.putFloat( projection[k][j] );
+					}
+				}
+				drain( channel, buffer );
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/* Bytes per stored record, the most a record can take when sparse. */
+	private static int getStride( int encoding, int dims ) {
+		if( encoding == FLOAT ) {
+			return 4 * dims;
+		}
+		if( encoding == SPARSE ) {
+			return RECORD_HEADER + 8 * dims;
+		}
+		int bytes = RECORD_HEADER + dims * ( encoding == FIXED_8 ? 1 : 2 );
+		return ( bytes + 7 ) / 8 * 8;
+	}
+
+	/* Scales vector to the full code range by its largest magnitude, returns the scale. */
+	private static float quantize( float[] vector, int[] codes, int encoding, boolean signed ) {
+		int largest = encoding == FIXED_8 ? ( signed ? Byte.MAX_VALUE : 255 ) : ( signed ? Short.MAX_VALUE : 65535 );
+		int smallest = signed ? -largest : 0;
+		float magnitude = 0;
+		for( int j = 0; j < vector.length; j++ ) {
+			magnitude = Math.max( magnitude, Math.abs( vector[j] ) );
+		}
+		float scale = magnitude / largest;
+		for( int j = 0; j < vector.length; j++ ) {
+			codes[j] = scale == 0 ? 0 : Math.max( smallest, Math.min( largest, Math.round( vector[j] / scale ) ) );
+		}
+		return scale;
+	}
+
+	private static int countNonZero( float[] vector ) {
+		int count = 0;
+		for( int j = 0; j < vector.length; j++ ) {
+			if( vector[j] != 0 ) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/* x'Ax, or |x|^2 without a form. */
+	private static double getSelfTerm( QuadraticForm form, float[] x ) {
+		if( form != null ) {
+			return form.getQuadratic( x );
+		}
+		double sum = 0;
+		for( int i = 0; i < x.length; i++ ) {
+			sum += (double) x[i] * x[i];
+		}
+		return sum;
+	}
+
+	public void writeText( File output ) throws IOException {
+		if( isProjected() ) {
+			throw new IOException( "A projected database has no text form." );
+		}
+		BufferedWriter writer = new BufferedWriter( new FileWriter( output ) );
+		try {
+			writer.write( rn +" "+ gn + " " + bn + " \n" );
+			for( int i = 0; i < records; i++ ) {
+				if( isDeleted( i ) ) {
+					continue;
+				}
+				writer.write( getUrls( i ) + " " );
+				for( int j = 0; j < bins; j++ ) {
+					writer.write( get( i, j ) + " " );
+				}
+				writer.write( "\n" );
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/* Histograms are stored sparse when that takes less space than floats. */
+	public static void importText( File text, File binary ) throws IOException {
+		final HistogramDatabase db = readText( text );
+		RecordSource source = new RecordSource() {
+			public int size() {
+				return db.records;
+			}
+			public String getUrls( int i ) {
+				return db.getUrls( i );
+			}
+			public void read( int i, float[] dst ) {
+				db.read( i, dst );
+			}
+		};
+		write( binary, db.rn, db.gn, db.bn, null, source, getSmallestEncoding( source, db.bins ) );
+	}
+
+	/* SPARSE when the histograms of source take less space as non-zero bins than as floats, FLOAT otherwise. */
+	static int getSmallestEncoding( RecordSource source, int bins ) {
+		long nonZero = 0;
+		float[] histogram = new float[ bins ];
+		for( int i = 0; i < source.size(); i++ ) {
+			source.read( i, histogram );
+			nonZero += countNonZero( histogram );
+		}
+		return RECORD_HEADER * (long) source.size() + 8 * nonZero < 4L * bins * source.size() ? SPARSE : FLOAT;
+	}
+
+	public static void exportText( File binary, File text ) throws IOException {
+		open( binary ).writeText( text );
+	}
+
+	/* Rewrites a binary database with the given encoding, dropping deleted records. */
+	public static void encode( File input, File output, int encoding ) throws IOException {
+		final HistogramDatabase db = open( input );
+		final int[] live = getLiveRecords( db );
+		write( output, db.rn, db.gn, db.bn, db.projection, new RecordSource() {
+			public int size() {
+				return live.length;
+			}
+			public String getUrls( int i ) {
+				return db.getUrls( live[i] );
+			}
+			public void read( int i, float[] dst ) {
+				db.read( live[i], dst );
+			}
+		}, encoding );
+	}
+
+	/* Factors the similarity matrix of the database resolution and stores every histogram projected. */
+	public static void project( File input, File output, int rank ) throws IOException {
+		HistogramDatabase db = open( input );
+		if( db.isProjected() ) {
+			throw new IOException( input + " is already projected." );
+		}
+		QuadraticForm form = SimilarityCache.get( db, input );
+		float[][] basis = form.factor( rank );
+		System.out.println( "Kept " + basis.length + " of " + db.bins + " components, "
+				+ 100 * form.getRetainedSpectrum( basis.length ) + "% of the positive spectrum." );
+		if( !form.isPositiveSemidefinite() ) {
+			System.out.println( "The similarity matrix has negative eigenvalues, projected distances are approximate." );
+		}
+		String[] urls = new String[ db.records ];
+		float[][] vectors = new float[ db.records ][];
+		float[] histogram = new float[ db.bins ];
+		for( int i = 0; i < db.records; i++ ) {
+			if( !db.isDeleted( i ) ) {
+				urls[i] = db.getUrls( i );
+				vectors[i] = new float[ basis.length ];
+				db.read( i, histogram );
+				QuadraticForm.project( basis, histogram, vectors[i] );
+			}
+		}
+		write( output, db.rn, db.gn, db.bn, urls, vectors, basis );
+	}
+
+	/*
+	 * Adds records after the existing ones, projecting them first if the
+	 * database is projected. Existing records keep their index, so the
+	 * tombstones stay valid. The file is rewritten next to the old one and
+	 * moved over it.
+	 */
+	public static void append( File database, final String[] urls, final float[][] histograms ) throws IOException {
+		final HistogramDatabase db = open( database );
+		if( db.urlStrings != null ) {
+			throw new IOException( database + " is a text database, import it first." );
+		}
+		final float[][] vectors = new float[ urls.length ][];
+		for( int i = 0; i < urls.length; i++ ) {
+			vectors[i] = histograms[i];
+			if( db.isProjected() ) {
+				vectors[i] = new float[ db.dims ];
+				QuadraticForm.project( db.projection, histograms[i], vectors[i] );
+			}
+		}
+		replace( database, db.projection, new RecordSource() {
+			public int size() {
+				return db.records + urls.length;
+			}
+			public String getUrls( int i ) {
+				return i < db.records ? db.getUrls( i ) : urls[ i - db.records ];
+			}
+			public void read( int i, float[] dst ) {
+				if( i < db.records ) {
+					db.read( i, dst );
+				} else {
+					System.arraycopy( vectors[ i - db.records ], 0, dst, 0, dst.length );
+				}
+			}
+		}, db );
+	}
+
+	/* Marks the records of the given page urls deleted, returns how many were found. */
+	public static int delete( File database, Set<String> pages ) throws IOException {
+		HistogramDatabase db = open( database );
+		/* Rewritten whole with the records deleted before, which drops stale lines */
+		File tombstones = getTombstoneFile( database );
+		File temporary = new File( tombstones.getPath() + ".tmp" );
+		BufferedWriter writer = new BufferedWriter( new FileWriter( temporary ) );
+		int count = 0;
+		try {
+			for( int i = 0; i < db.records; i++ ) {
+				if( db.isDeleted( i ) ) {
+					writer.write( i + " " + db.getPage( i ) + "\n" );
+				} else if( pages.contains( db.getPage( i ) ) ) {
+					writer.write( i + " " + db.getPage( i ) + "\n" );
+					count++;
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move( temporary.toPath(), tombstones.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		return count;
+	}
+
+	/* Rewrites the database without its deleted records and drops the tombstones. */
+	public static void compact( File database ) throws IOException {
+		final HistogramDatabase db = open( database );
+		if( db.urlStrings != null ) {
+			throw new IOException( database + " is a text database, import it first." );
+		}
+		final int[] live = getLiveRecords( db );
+		replace( database, db.projection, new RecordSource() {
+			public int size() {
+				return live.length;
+			}
+			public String getUrls( int i ) {
+				return db.getUrls( live[i] );
+			}
+			public void read( int i, float[] dst ) {
+				db.read( live[i], dst );
+			}
+		}, db );
+		File tombstones = getTombstoneFile( database );
+		if( tombstones.exists() && !tombstones.delete() ) {
+			throw new IOException( "Cannot delete " + tombstones );
+		}
+	}
+
+	/*
+	 * The same records at a coarser resolution. Bins split every channel in
+	 * powers of two, so each coarse bin is the sum of the fine bins inside
+	 * it. The sums are taken once here into heap buffers, together with
+	 * x'Ax of every coarse record, so scans of the view are linear in the
+	 * number of coarse bins. database is where this one is stored, the form
+	 * of the coarse resolution keeps its sidecar next to it.
+	 */
+	public HistogramDatabase coarsen( int rn, int gn, int bn, File database ) throws IOException {
+		if( rn == this.rn && gn == this.gn && bn == this.bn ) {
+			return this;
+		}
+		if( isProjected() ) {
+			throw new IOException( "A projected database has no coarser resolutions." );
+		}
+		if( rn < 0 || gn < 0 || bn < 0 || rn > this.rn || gn > this.gn || bn > this.bn ) {
+			throw new IOException( "Cannot aggregate " + this.rn + " " + this.gn + " " + this.bn + " bins into " + rn + " " + gn + " " + bn + "." );
+		}
+		HistogramDatabase db = new HistogramDatabase();
+		db.rn = rn;
+		db.gn = gn;
+		db.bn = bn;
+		db.bins = 1 << ( rn + gn + bn );
+		db.dims = db.bins;
+		db.records = records;
+		db.urlTable = urlTable;
+		db.urlOffsets = urlOffsets;
+		db.urlStrings = urlStrings;
+		db.deleted = deleted;
+
+		int[] coarse = getCoarseBins( this.rn, this.gn, this.bn, rn, gn, bn );
+		QuadraticForm form = SimilarityCache.get( rn, gn, bn, database.getAbsoluteFile().getParentFile() );
+		db.selfTerms = new double[ records ];
+		float[] vector = new float[ db.bins ];
+
+		db.recordsPerChunk = Math.max( 1, ( Integer.MAX_VALUE - 8 ) / db.bins );
+		int numberOfChunks = Math.max( 1, ( records + db.recordsPerChunk - 1 ) / db.recordsPerChunk );
+		db.chunks = new FloatBuffer[ numberOfChunks ];
+		float[] fine = new float[ bins ];
+		double[] sums = new double[ db.bins ];
+		for( int c = 0; c < numberOfChunks; c++ ) {
+			int first = c * db.recordsPerChunk;
+			int count = Math.min( db.recordsPerChunk, records - first );
+			FloatBuffer chunk = FloatBuffer.allocate( count * db.bins );
+			for( int i = first; i < first + count; i++ ) {
+				Arrays.fill( sums, 0 );
+				if( encoding == SPARSE ) {
+					ByteBuffer source = getChunk( i );
+					int base = getBase( i );
+					int nonZero = source.getInt( base + 8 );
+					for( int k = 0; k < nonZero; k++ ) {
+						sums[ coarse[ source.getInt( base + RECORD_HEADER + 4 * k ) ] ] += source.getFloat( base + RECORD_HEADER + 4 * ( nonZero + k ) );
+					}
+				} else {
+					read( i, fine );
+					for( int f = 0; f < bins; f++ ) {
+						sums[ coarse[f] ] += fine[f];
+					}
+				}
+				for( int j = 0; j < db.bins; j++ ) {
+					vector[j] = (float) sums[j];
+				}
+				chunk.put( vector );
+				db.selfTerms[i] = getSelfTerm( form, vector );
+			}
+			chunk.flip();
+			db.chunks[c] = chunk;
+		}
+		return db;
+	}
+
+	/* The coarse bin of every fine bin, each channel index loses its low bits. */
+	static int[] getCoarseBins( int fineRn, int fineGn, int fineBn, int rn, int gn, int bn ) {
+		int[] coarse = new int[ 1 << ( fineRn + fineGn + fineBn ) ];
+		for( int f = 0; f < coarse.length; f++ ) {
+			int r = f >> ( fineGn + fineBn );
+			int g = ( f >> fineBn ) & ( ( 1 << fineGn ) - 1 );
+			int b = f & ( ( 1 << fineBn ) - 1 );
+			coarse[f] = ( r >> ( fineRn - rn ) ) << ( gn + bn ) | ( g >> ( fineGn - gn ) ) << bn | b >> ( fineBn - bn );
+		}
+		return coarse;
+	}
+
+	private static int[] getLiveRecords( HistogramDatabase db ) {
+		int[] live = new int[ db.records - db.deleted.cardinality() ];
+		for( int i = 0, j = 0; i < db.records; i++ ) {
+			if( !db.isDeleted( i ) ) {
+				live[ j++ ] = i;
+			}
+		}
+		return live;
+	}
+
+	/* The rewritten database keeps the encoding of the old one. */
+	private static void replace( File database, float[][] projection, RecordSource source, HistogramDatabase db ) throws IOException {
+		File temporary = new File( database.getPath() + ".tmp" );
+		write( temporary, db.rn, db.gn, db.bn, projection, source, db.encoding );
+		Files.move( temporary.toPath(), database.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	public static File getTombstoneFile( File database ) {
+		return new File( database.getPath() + ".deleted" );
+	}
+
+	private void readTombstones( File database ) throws IOException {
+		deleted = new BitSet( records );
+		File tombstones = getTombstoneFile( database );
+		if( !tombstones.exists() ) {
+			return;
+		}
+		Scanner scanner = new Scanner( tombstones );
+		try {
+			while( scanner.hasNextLine() ) {
+				String line = scanner.nextLine().trim();
+				if( line.length() > 0 ) {
+					/* Files written before pages were recorded hold indexes only */
+					String[] temp = line.split( " ", 2 );
+					int record = Integer.valueOf( temp[0] );
+					if( record >= 0 && record < records && ( temp.length == 1 || temp[1].equals( getPage( record ) ) ) ) {
+						deleted.set( record );
+					}
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+	}
+
+	private static void drain( FileChannel channel, ByteBuffer buffer ) throws IOException {
+		buffer.flip();
+		while( buffer.hasRemaining() ) {
+			channel.write( buffer );
+		}
+		buffer.clear();
+	}
+
+	private static long align( long offset ) {
+		return ( offset + ALIGNMENT - 1 ) / ALIGNMENT * ALIGNMENT;
+	}
+
+	public float get( int record, int component ) {
+		if( encoding == SPARSE ) {
+			ByteBuffer chunk = getChunk( record );
+			int base = getBase( record );
+			int low = 0, high = chunk.getInt( base + 8 ) - 1;
+			while( low <= high ) {
+				int middle = ( low + high ) >>> 1;
+				int index = chunk.getInt( base + RECORD_HEADER + 4 * middle );
+				if( index == component ) {
+					return chunk.getFloat( base + RECORD_HEADER + 4 * ( chunk.getInt( base + 8 ) + middle ) );
+				} else if( index < component ) {
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return 0;
+		}
+		if( encoding != FLOAT ) {
+			ByteBuffer chunk = getChunk( record );
+			int base = getBase( record );
+			return getCode( chunk, base + RECORD_HEADER, component ) * chunk.getFloat( base + 8 );
+		}
+		return chunks[ record / recordsPerChunk ].get( ( record % recordsPerChunk ) * dims + component );
+	}
+
+	/* Copies one stored vector into dst without allocating, fixed point records are scaled back. */
+	public void read( int record, float[] dst ) {
+		if( encoding == SPARSE ) {
+			ByteBuffer chunk = getChunk( record );
+			int base = getBase( record );
+			int count = chunk.getInt( base + 8 );
+			Arrays.fill( dst, 0, dims, 0 );
+			for( int k = 0; k < count; k++ ) {
+				dst[ chunk.getInt( base + RECORD_HEADER + 4 * k ) ] = chunk.getFloat( base + RECORD_HEADER + 4 * ( count + k ) );
+			}
+			return;
+		}
+		if( encoding != FLOAT ) {
+			ByteBuffer chunk = getChunk( record );
+			int base = getBase( record );
+			float scale = chunk.getFloat( base + 8 );
+			for( int j = 0; j < dims; j++ ) {
+				dst[j] = getCode( chunk, base + RECORD_HEADER, j ) * scale;
+			}
+			return;
+		}
+		FloatBuffer chunk = chunks[ record / recordsPerChunk ];
+		int base = ( record % recordsPerChunk ) * dims;
+		for( int j = 0; j < dims; j++ ) {
+			dst[j] = chunk.get( base + j );
+		}
+	}
+
+	private int getCode( ByteBuffer chunk, int codes, int component ) {
+		if( encoding == FIXED_8 ) {
+			byte code = chunk.get( codes + component );
+			return projection == null ? code & 0xFF : code;
+		}
+		short code = chunk.getShort( codes + 2 * component );
+		return projection == null ? code & 0xFFFF : code;
+	}
+
+	private ByteBuffer getChunk( int record ) {
+		return codeChunks[ encoding == SPARSE ? sparseChunk[ record ] : record / recordsPerChunk ];
+	}
+
+	private int getBase( int record ) {
+		return encoding == SPARSE ? sparsePosition[ record ] : ( record % recordsPerChunk ) * stride;
+	}
+
+	/*
+	 * The dot product of weights with a record without decoding it: the codes
+	 * of a fixed point record, the non-zero bins of a sparse one. With
+	 * weights Aq the squared distance is q'Aq - 2 * getWeightedDot + getSelfTerm.
+	 */
+	public double getWeightedDot( int record, double[] weights ) {
+		if( encoding == FLOAT ) {
+			FloatBuffer chunk = chunks[ record / recordsPerChunk ];
+			int base = ( record % recordsPerChunk ) * dims;
+			double sum = 0;
+			for( int j = 0; j < dims; j++ ) {
+				sum += weights[j] * chunk.get( base + j );
+			}
+			return sum;
+		}
+		ByteBuffer chunk = getChunk( record );
+		int base = getBase( record );
+		int codes = base + RECORD_HEADER;
+		double sum = 0;
+		if( encoding == SPARSE ) {
+			int count = chunk.getInt( base + 8 );
+			int values = codes + 4 * count;
+			for( int k = 0; k < count; k++ ) {
+				sum += weights[ chunk.getInt( codes + 4 * k ) ] * chunk.getFloat( values + 4 * k );
+			}
+			return sum;
+		}
+		if( encoding == FIXED_8 ) {
+			int mask = projection == null ? 0xFF : -1;
+			for( int j = 0; j < dims; j++ ) {
+				sum += weights[j] * ( chunk.get( codes + j ) & mask );
+			}
+		} else {
+			int mask = projection == null ? 0xFFFF : -1;
+			for( int j = 0; j < dims; j++ ) {
+				sum += weights[j] * ( chunk.getShort( codes + 2 * j ) & mask );
+			}
+		}
+		return sum * chunk.getFloat( base + 8 );
+	}
+
+	/* x'Ax of a fixed point, sparse or coarse record, |x|^2 when projected. */
+	public double getSelfTerm( int record ) {
+		if( selfTerms != null ) {
+			return selfTerms[ record ];
+		}
+		return getChunk( record ).getDouble( getBase( record ) );
+	}
+
+	/* True when records carry their x'Ax and are scored with getWeightedDot, all but stored floats. */
+	public boolean hasSelfTerms() {
+		return encoding != FLOAT || selfTerms != null;
+	}
+
+	public int getEncoding() {
+		return encoding;
+	}
+
+	/* "page small large", decoded on demand. */
+	public String getUrls( int record ) {
+		if( urlStrings != null ) {
+			return urlStrings[ record ];
+		}
+		int position = urlOffsets[ record ];
+		int length = urlTable.getInt( position );
+		byte[] bytes = new byte[ length ];
+		for( int i = 0; i < length; i++ ) {
+			bytes[i] = urlTable.get( position + 4 + i );
+		}
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	public String getPage( int record ) {
+		String urls = getUrls( record );
+		int space = urls.indexOf( ' ' );
+		return space < 0 ? urls : urls.substring( 0, space );
+	}
+
+	/* Number of records including deleted ones, record indexes run up to it. */
+	public int size() {
+		return records;
+	}
+
+	public boolean isDeleted( int record ) {
+		return deleted.get( record );
+	}
+
+	public int getDeletedCount() {
+		return deleted.cardinality();
+	}
+
+	public int getBins() {
+		return bins;
+	}
+
+	/* Length of the stored vectors, bins unless the database is projected. */
+	public int getDimensions() {
+		return dims;
+	}
+
+	public boolean isProjected() {
+		return projection != null;
+	}
+
+	public float[][] getProjection() {
+		return projection;
+	}
+
+	public int getRn() {
+		return rn;
+	}
+
+	public int getGn() {
+		return gn;
+	}
+
+	public int getBn() {
+		return bn;
+	}
+}
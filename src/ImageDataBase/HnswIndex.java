@@ -0,0 +1,490 @@
+package ImageDataBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Hierarchical navigable small world graph over the records of a database,
+ * for approximate nearest neighbours in time logarithmic in its size.
+ *
+ * The graph is built over the factored embedding of the records, where the
+ * quadratic distance is a Euclidean one: the stored vectors of a projected
+ * database, or the histograms projected by the positive components of the
+ * similarity matrix (optionally truncated to a rank). Every record gets a
+ * random top layer, and on each layer up to it is linked to M neighbours
+ * chosen by the usual heuristic (2M on layer 0). A query descends greedily
+ * to layer 0, collects efSearch candidates there and rescores them with the
+ * exact distance, see DatabaseScan.
+ *
+ * Saved as "<database>.hnsw" (little endian): a 64 byte header with magic,
+ * version, size, dims, M, efConstruction, top layer, entry point, whether
+ * the embedding is the stored vectors, the rank and the length of the
+ * database it was saved for, then every record's top layer and neighbour
+ * lists (count and ids per layer), then the embedding unless it is stored.
+ * An index whose size or database length no longer match is out of date.
+ * Appends extend the index, compact removes it.
+ * Deleted records stay in the graph and are left out of the results.
+ *
+ * Searches share scratch state, an index answers one query at a time.
+ */
+public class HnswIndex {
+	public static final int MAGIC = 0x4E484243; // "CBHN"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 64;
+	public static final int DEFAULT_M = 16;
+	public static final int DEFAULT_EF_CONSTRUCTION = 200;
+	public static final int DEFAULT_EF_SEARCH = 64;
+
+	private final int M;
+	private final int efConstruction;
+	private final int rank;
+	private final boolean stored;
+	private final double levelFactor;
+	private int dims;
+	private int size;
+	private float[][] vectors = new float[0][];
+	private int[][][] links = new int[0][][];
+	private int entryPoint = -1;
+	private int topLayer = -1;
+	private float[][] basis;
+	private Random random;
+
+	/* Marks of visited records, cleared by advancing the generation */
+	private int[] visited = new int[0];
+	private int generation;
+	private long evaluations;
+
+	private HnswIndex( int M, int efConstruction, int rank, boolean stored ) {
+		this.M = Math.max( 2, M );
+		this.efConstruction = Math.max( this.M, efConstruction );
+		this.rank = rank;
+		this.stored = stored;
+		levelFactor = 1 / Math.log( this.M );
+	}
+
+	public static File getIndexFile( File database ) {
+		return new File( database.getPath() + ".hnsw" );
+	}
+
+	/*
+	 * Builds the index of a database and saves it. An index that is up to
+	 * date and built with the same parameters is kept as it is. rank <= 0
+	 * keeps every positive component.
+	 */
+	public static HnswIndex build( File database, int M, int efConstruction, int rank ) throws IOException {
+		HistogramDatabase db = HistogramDatabase.open( database );
+		HnswIndex requested = new HnswIndex( M, efConstruction, rank, db.isProjected() );
+		HnswIndex index = load( database, db );
+		if( index != null && !index.hasParameters( requested ) ) {
+			System.out.println( "The index " + getIndexFile( database ) + " has M " + index.M + ", efConstruction " + index.efConstruction
+					+ " and rank " + index.rank + ", building it again." );
+			index = null;
+		} else if( index != null ) {
+			System.out.println( "Keeping the index " + getIndexFile( database ) + ", it is up to date." );
+		}
+		if( index == null ) {
+			index = requested;
+		}
+		index.extend( database, db );
+		return index;
+	}
+
+	/* The stored vectors are the embedding at every rank */
+	private boolean hasParameters( HnswIndex other ) {
+		return M == other.M && efConstruction == other.efConstruction && stored == other.stored
+				&& ( stored || Math.max( 0, rank ) == Math.max( 0, other.rank ) );
+	}
+
+	/*
+	 * Adds the records after the ones indexed and saves the index. An append
+	 * rewrites the database, so the index is loaded before it and extended
+	 * with the new database after it.
+	 */
+	void extend( File database, HistogramDatabase db ) throws IOException {
+		long start = System.nanoTime();
+		int added = addRecords( db, database );
+		save( database );
+		System.out.println( "Added " + added + " records to the index in " + ( System.nanoTime() - start ) / 1000000 + " ms, "
+				+ size + " records on " + ( topLayer + 1 ) + " layers." );
+	}
+
+	private int addRecords( HistogramDatabase db, File database ) throws IOException {
+		if( !stored && basis == null ) {
+			basis = SimilarityCache.get( db, database ).factor( rank );
+		}
+		dims = stored ? db.getDimensions() : basis.length;
+		int first = size;
+		if( random == null ) {
+			random = new Random( first + 1 );
+		}
+		float[] histogram = new float[ db.getDimensions() ];
+		for( int record = first; record < db.size(); record++ ) {
+			float[] vector = new float[ dims ];
+			db.read( record, histogram );
+			if( stored ) {
+				System.arraycopy( histogram, 0, vector, 0, dims );
+			} else {
+				QuadraticForm.project( basis, histogram, vector );
+			}
+			insert( vector );
+		}
+		return size - first;
+	}
+
+	private void insert( float[] vector ) {
+		int node = size;
+		if( node == vectors.length ) {
+			int capacity = Math.max( 16, 2 * vectors.length );
+			vectors = Arrays.copyOf( vectors, capacity );
+			links = Arrays.copyOf( links, capacity );
+			visited = Arrays.copyOf( visited, capacity );
+		}
+		vectors[ node ] = vector;
+		int level = (int) ( -Math.log( 1 - random.nextDouble() ) * levelFactor );
+		links[ node ] = new int[ level + 1 ][];
+		for( int layer = 0; layer <= level; layer++ ) {
+			links[ node ][ layer ] = new int[ 1 + getCapacity( layer ) ];
+		}
+		size++;
+		if( entryPoint < 0 ) {
+			entryPoint = node;
+			topLayer = level;
+			return;
+		}
+
+		int closest = entryPoint;
+		for( int layer = topLayer; layer > level; layer-- ) {
+			closest = searchLayer( vector, closest, 1, layer ).sortedRecords()[0];
+		}
+		for( int layer = Math.min( level, topLayer ); layer >= 0; layer-- ) {
+			TopK found = searchLayer( vector, closest, efConstruction, layer );
+			int[] candidates = found.sortedRecords();
+			int[] neighbours = selectNeighbours( candidates, found.sortedDistances(), M );
+			int[] own = links[ node ][ layer ];
+			for( int neighbour : neighbours ) {
+				own[ ++own[0] ] = neighbour;
+				connect( neighbour, node, layer );
+			}
+			closest = candidates[0];
+		}
+		if( level > topLayer ) {
+			entryPoint = node;
+			topLayer = level;
+		}
+	}
+
+	private int getCapacity( int layer ) {
+		return layer == 0 ? 2 * M : M;
+	}
+
+	/* Adds node to the list of neighbour, choosing again among them when the list is full. */
+	private void connect( int neighbour, int node, int layer ) {
+		int[] list = links[ neighbour ][ layer ];
+		if( list[0] < list.length - 1 ) {
+			list[ ++list[0] ] = node;
+			return;
+		}
+		TopK all = new TopK( list[0] + 1 );
+		for( int i = 1; i <= list[0]; i++ ) {
+			all.offer( Distances.getSquaredEuclidean( vectors[ neighbour ], vectors[ list[i] ] ), list[i] );
+		}
+		all.offer( Distances.getSquaredEuclidean( vectors[ neighbour ], vectors[ node ] ), node );
+		int[] kept = selectNeighbours( all.sortedRecords(), all.sortedDistances(), list.length - 1 );
+		list[0] = kept.length;
+		System.arraycopy( kept, 0, list, 1, kept.length );
+	}
+
+	/*
+	 * Candidates in increasing distance. One is kept when it is closer to the
+	 * base than to every neighbour kept before it, which spreads the links in
+	 * all directions, and the list is filled up with the closest of the rest.
+	 */
+	private int[] selectNeighbours( int[] candidates, float[] distances, int count ) {
+		int[] kept = new int[ Math.min( count, candidates.length ) ];
+		boolean[] taken = new boolean[ candidates.length ];
+		int n = 0;
+		for( int c = 0; c < candidates.length && n < kept.length; c++ ) {
+			boolean diverse = true;
+			for( int k = 0; k < n && diverse; k++ ) {
+				diverse = Distances.getSquaredEuclidean( vectors[ candidates[c] ], vectors[ kept[k] ] ) >= distances[c];
+			}
+			if( diverse ) {
+				kept[ n++ ] = candidates[c];
+				taken[c] = true;
+			}
+		}
+		for( int c = 0; c < candidates.length && n < kept.length; c++ ) {
+			if( !taken[c] ) {
+				kept[ n++ ] = candidates[c];
+			}
+		}
+		return kept;
+	}
+
+	/* The ef records nearest to vector found on a layer from an entry point, by squared distance. */
+	private TopK searchLayer( float[] vector, int entry, int ef, int layer ) {
+		if( ++generation == 0 ) {
+			Arrays.fill( visited, 0 );
+			generation = 1;
+		}
+		TopK found = new TopK( ef );
+		Candidates candidates = new Candidates();
+		float distance = Distances.getSquaredEuclidean( vector, vectors[ entry ] );
+		evaluations++;
+		visited[ entry ] = generation;
+		found.offer( distance, entry );
+		candidates.push( distance, entry );
+		while( candidates.size > 0 ) {
+			if( candidates.peekDistance() > found.threshold() ) {
+				break;
+			}
+			int current = candidates.pop();
+			int[] list = links[ current ][ layer ];
+			for( int i = 1; i <= list[0]; i++ ) {
+				int neighbour = list[i];
+				if( visited[ neighbour ] == generation ) {
+					continue;
+				}
+				visited[ neighbour ] = generation;
+				distance = Distances.getSquaredEuclidean( vector, vectors[ neighbour ] );
+				evaluations++;
+				if( distance < found.threshold() ) {
+					found.offer( distance, neighbour );
+					candidates.push( distance, neighbour );
+				}
+			}
+		}
+		return found;
+	}
+
+	/* Binary min-heap of records by distance. */
+	private static class Candidates {
+		float[] distances = new float[ 64 ];
+		int[] records = new int[ 64 ];
+		int size;
+
+		void push( float distance, int record ) {
+			if( size == records.length ) {
+				distances = Arrays.copyOf( distances, 2 * size );
+				records = Arrays.copyOf( records, 2 * size );
+			}
+			int i = size++;
+			while( i > 0 && distances[ ( i - 1 ) >> 1 ] > distance ) {
+				distances[i] = distances[ ( i - 1 ) >> 1 ];
+				records[i] = records[ ( i - 1 ) >> 1 ];
+				i = ( i - 1 ) >> 1;
+			}
+			distances[i] = distance;
+			records[i] = record;
+		}
+
+		float peekDistance() {
+			return distances[0];
+		}
+
+		int pop() {
+			int top = records[0];
+			float distance = distances[ --size ];
+			int record = records[ size ];
+			int i = 0;
+			while( 2 * i + 1 < size ) {
+				int child = 2 * i + 1;
+				if( child + 1 < size && distances[ child + 1 ] < distances[ child ] ) {
+					child++;
+				}
+				if( distances[ child ] >= distance ) {
+					break;
+				}
+				distances[i] = distances[ child ];
+				records[i] = records[ child ];
+				i = child;
+			}
+			distances[i] = distance;
+			records[i] = record;
+			return top;
+		}
+	}
+
+	/*
+	 * The approximate K nearest records to a query given as the database is
+	 * scanned (a histogram, or a projected vector for a projected database),
+	 * with exact distances. Adds the number of distances computed to
+	 * evaluations.
+	 */
+	public synchronized TopK search( HistogramDatabase db, float[] query, QuadraticForm form, int K, int efSearch, AtomicLong evaluations ) {
+		if( size == 0 ) {
+			return new TopK( K );
+		}
+		float[] vector = query;
+		if( !stored ) {
+			vector = new float[ dims ];
+			QuadraticForm.project( basis, query, vector );
+		}
+		this.evaluations = 0;
+		int closest = entryPoint;
+		for( int layer = topLayer; layer > 0; layer-- ) {
+			closest = searchLayer( vector, closest, 1, layer ).sortedRecords()[0];
+		}
+		int[] candidates = searchLayer( vector, closest, Math.max( efSearch, K ), 0 ).sortedRecords();
+		/* In record order, so the rescoring reads the database front to back */
+		Arrays.sort( candidates );
+		if( evaluations != null ) {
+			evaluations.addAndGet( this.evaluations + candidates.length );
+		}
+		return DatabaseScan.scan( db, query, form, K, null, candidates, 0, null );
+	}
+
+	/* The index of a database, or null when there is none or it does not fit the database. */
+	public static HnswIndex load( File database, HistogramDatabase db ) throws IOException {
+		File file = getIndexFile( database );
+		if( !file.exists() ) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ).order( ByteOrder.LITTLE_ENDIAN );
+			if( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) > VERSION ) {
+				throw new IOException( file + " is not an index." );
+			}
+			int size = buffer.getInt( 8 );
+			HnswIndex index = new HnswIndex( buffer.getInt( 16 ), buffer.getInt( 20 ), buffer.getInt( 36 ), buffer.getInt( 32 ) != 0 );
+			if( buffer.getInt( 4 ) != VERSION || size != db.size() || buffer.getLong( 40 ) != database.length()
+					|| index.stored != db.isProjected() ) {
+				System.out.println( "The index " + file + " is out of date, build it again." );
+				return null;
+			}
+			index.dims = buffer.getInt( 12 );
+			index.topLayer = buffer.getInt( 24 );
+			index.entryPoint = buffer.getInt( 28 );
+			index.size = size;
+			index.vectors = new float[ size ][];
+			index.links = new int[ size ][][];
+			index.visited = new int[ size ];
+			buffer.position( HEADER_SIZE );
+			for( int node = 0; node < size; node++ ) {
+				int level = buffer.getInt();
+				index.links[ node ] = new int[ level + 1 ][];
+				for( int layer = 0; layer <= level; layer++ ) {
+					int[] list = new int[ 1 + index.getCapacity( layer ) ];
+					list[0] = buffer.getInt();
+					for( int i = 1; i <= list[0]; i++ ) {
+						list[i] = buffer.getInt();
+					}
+					index.links[ node ][ layer ] = list;
+				}
+			}
+			if( index.stored ) {
+				for( int node = 0; node < size; node++ ) {
+					index.vectors[ node ] = new float[ index.dims ];
+					db.read( node, index.vectors[ node ] );
+				}
+			} else {
+				for( int node = 0; node < size; node++ ) {
+					index.vectors[ node ] = new float[ index.dims ];
+					buffer.asFloatBuffer().get( index.vectors[ node ] );
+					buffer.position( buffer.position() + 4 * index.dims );
+				}
+				index.basis = SimilarityCache.get( db, database ).factor( index.rank );
+			}
+			return index;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void save( File database ) throws IOException {
+		File file = getIndexFile( database );
+		File temporary = new File( file.getPath() + ".tmp" );
+		RandomAccessFile raf = new RandomAccessFile( temporary, "rw" );
+		try {
+			raf.setLength( 0 );
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate( Math.max( 1 << 16, 4 * ( dims + 2 * getCapacity( 0 ) ) ) ).order( ByteOrder.LITTLE_ENDIAN );
+			buffer.putInt( MAGIC ).putInt( VERSION ).putInt( size ).putInt( dims ).putInt( M ).putInt( efConstruction )
+					.putInt( topLayer ).putInt( entryPoint ).putInt( stored ? 1 : 0 ).putInt( rank ).putLong( database.length() );
+			buffer.position( HEADER_SIZE );
+			for( int node = 0; node < size; node++ ) {
+				if( buffer.remaining() < 4 * ( 1 + links[ node ].length * ( 1 + getCapacity( 0 ) ) ) ) {
+					drain( channel, buffer );
+				}
+				buffer.putInt( links[ node ].length - 1 );
+				for( int[] list : links[ node ] ) {
+					for( int i = 0; i <= list[0]; i++ ) {
+						buffer.putInt( list[i] );
+					}
+				}
+			}
+			if( !stored ) {
+				for( int node = 0; node < size; node++ ) {
+					if( buffer.remaining() < 4 * dims ) {
+						drain( channel, buffer );
+					}
+					for( float value : vectors[ node ] ) {
+						buffer.putFloat( value );
+					}
+				}
+			}
+			drain( channel, buffer );
+		} finally {
+			raf.close();
+		}
+		Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	private static void drain( FileChannel channel, ByteBuffer buffer ) throws IOException {
+		buffer.flip();
+		while( buffer.hasRemaining() ) {
+			channel.write( buffer );
+		}
+		buffer.clear();
+	}
+
+	public static void run( String queryUrl, File database, File responseFile, int K, int efSearch ) throws IOException {
+		RetrievalEngine engine = RetrievalEngine.of( HistogramDatabase.open( database ), database );
+		HistogramDatabase db = engine.getDatabase();
+		HnswIndex index = load( database, db );
+		if( index == null ) {
+			throw new IOException( "Build a graph index of " + database + " first." );
+		}
+		float[] query = engine.getQueryVector( engine.getHistogram( queryUrl ) );
+		QuadraticForm form = engine.getForm();
+		AtomicLong evaluations = new AtomicLong();
+		long start = System.nanoTime();
+		TopK best = index.search( db, query, form, K, efSearch, evaluations );
+		System.out.println( "Computed " + evaluations.get() + " distances for " + db.size() + " records in "
+				+ ( System.nanoTime() - start ) / 1000 + " us." );
+		engine.writeResponse( queryUrl, engine.getResults( best ), responseFile, K );
+	}
+
+	/*
+	 * Recall and latency for each efSearch against exhaustive scans. Queries
+	 * are midpoints of two random records, so they are not in the database.
+	 */
+	public static void measureRecall( File database, final int K, int[] efSearches, int samples ) throws IOException {
+		final HistogramDatabase db = HistogramDatabase.open( database );
+		final HnswIndex index = load( database, db );
+		if( index == null ) {
+			throw new IOException( "Build a graph index of " + database + " first." );
+		}
+		final QuadraticForm form = db.isProjected() ? null : SimilarityCache.get( db, database );
+		Recall.measure( db, form, K, samples, "efSearch", efSearches, new Recall.Search() {
+			public TopK search( float[] query, int setting, AtomicLong evaluations ) {
+				return index.search( db, query, form, K, setting, evaluations );
+			}
+		});
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,256 @@
+package ImageDataBase;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Disk cache of fetched image bytes, so rebuilding a database at another
+ * resolution or repeating a query does not download the images again.
+ *
+ * Image bytes are stored once under their SHA-256 in objects/, and urls/
+ * maps the SHA-256 of every url to the hash of its bytes, so the same image
+ * behind several urls is stored once. Bytes are checked against their hash
+ * when read, a damaged object is dropped and fetched again. A hit touches
+ * the object, and when the objects exceed the size cap the least recently
+ * used are removed until they take 90% of it. Url entries of removed objects
+ * are misses and are replaced on the next fetch.
+ *
+ * Offline, only cached images and file: urls are read and anything else is
+ * an error. file: urls are never cached.
+ *
+ * The cache every command uses is configured by system properties:
+ * cbir.cache (directory, no cache when unset), cbir.cache.size (cap in MB,
+ * default 1024) and cbir.offline (true or false).
+ */
+public class ImageCache {
+	private static final int CONNECT_TIMEOUT = 30000;
+	private static final int READ_TIMEOUT = 60000;
+	private static final long DEFAULT_CAPACITY = 1024L << 20;
+
+	private static ImageCache defaultCache;
+
+	private final File objects;
+	private final File urls;
+	private final long capacity;
+	private final boolean offline;
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/* directory null caches nothing, which is only useful offline or to download. */
+	public ImageCache( File directory, long capacity, boolean offline ) throws IOException {
+		this.capacity = capacity;
+		this.offline = offline;
+		if( directory == null ) {
+			objects = null;
+			urls = null;
+			return;
+		}
+		objects = new File( directory, "objects" );
+		urls = new File( directory, "urls" );
+		if( !( objects.isDirectory() || objects.mkdirs() ) || !( urls.isDirectory() || urls.mkdirs() ) ) {
+			throw new IOException( "Cannot create the image cache in " + directory );
+		}
+		for( File object : listObjects() ) {
+			total.addAndGet( object.length() );
+		}
+	}
+
+	public static synchronized ImageCache getDefault() throws IOException {
+		if( defaultCache == null ) {
+			String directory = System.getProperty( "cbir.cache" );
+			String size = System.getProperty( "cbir.cache.size" );
+			defaultCache = new ImageCache( directory == null ? null : new File( directory ),
+					size == null ? DEFAULT_CAPACITY : Long.valueOf( size ) << 20, Boolean.getBoolean( "cbir.offline" ) );
+		}
+		return defaultCache;
+	}
+
+	public BufferedImage read( String url ) throws IOException {
+		BufferedImage image = ImageDecoder.decode( fetch( url ) );
+		if( image == null ) {
+			throw new IOException( "Cannot decode " + url );
+		}
+		return image;
+	}
+
+	/* The bytes behind a url, from the cache when they are there. */
+	public byte[] fetch( String url ) throws IOException {
+		if( url.startsWith( "file:" ) ) {
+			return download( url );
+		}
+		if( objects != null ) {
+			byte[] bytes = lookUp( url );
+			if( bytes != null ) {
+				hits.incrementAndGet();
+				return bytes;
+			}
+		}
+		if( offline ) {
+			throw new IOException( url + " is not cached and the cache is offline." );
+		}
+		misses.incrementAndGet();
+		byte[] bytes = download( url );
+		if( objects != null ) {
+			store( url, bytes );
+		}
+		return bytes;
+	}
+
+	private byte[] lookUp( String url ) throws IOException {
+		File entry = new File( urls, hash( url.getBytes( StandardCharsets.UTF_8 ) ) );
+		if( !entry.exists() ) {
+			return null;
+		}
+		try {
+			String name = new String( Files.readAllBytes( entry.toPath() ), StandardCharsets.US_ASCII ).trim();
+			File object = getObject( name );
+			byte[] bytes = Files.readAllBytes( object.toPath() );
+			if( !hash( bytes ).equals( name ) ) {
+				if( object.delete() ) {
+					total.addAndGet( -bytes.length );
+				}
+				return null;
+			}
+			object.setLastModified( System.currentTimeMillis() );
+			return bytes;
+		} catch( IOException e ) {
+			/* Evicted, or removed while we read it */
+			return null;
+		}
+	}
+
+	private void store( String url, byte[] bytes ) throws IOException {
+		String name = hash( bytes );
+		File object = getObject( name );
+		if( !object.exists() ) {
+			File parent = object.getParentFile();
+			if( !( parent.isDirectory() || parent.mkdirs() ) ) {
+				throw new IOException( "Cannot create " + parent );
+			}
+			write( object, bytes );
+			total.addAndGet( bytes.length );
+		} else {
+			object.setLastModified( System.currentTimeMillis() );
+		}
+		write( new File( urls, hash( url.getBytes( StandardCharsets.UTF_8 ) ) ), name.getBytes( StandardCharsets.US_ASCII ) );
+		if( total.get() > capacity ) {
+			evict();
+		}
+	}
+
+	/* Written next to the target and moved in, so readers never see part of a file. */
+	private static void write( File file, byte[] bytes ) throws IOException {
+		File temporary = File.createTempFile( file.getName(), ".tmp", file.getParentFile() );
+		try {
+			Files.write( temporary.toPath(), bytes );
+			Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	private synchronized void evict() {
+		if( total.get() <= capacity ) {
+			return;
+		}
+		File[] files = listObjects().toArray( new File[0] );
+		final long[] used = new long[ files.length ];
+		Integer[] order = new Integer[ files.length ];
+		long sum = 0;
+		for( int i = 0; i < files.length; i++ ) {
+			used[i] = files[i].lastModified();
+			order[i] = i;
+			sum += files[i].length();
+		}
+		Arrays.sort( order, new Comparator<Integer>() {
+			public int compare( Integer a, Integer b ) {
+				return Long.compare( used[a], used[b] );
+			}
+		});
+		long target = capacity / 10 * 9;
+		for( int i = 0; i < order.length && sum > target; i++ ) {
+			long length = files[ order[i] ].length();
+			if( files[ order[i] ].delete() ) {
+				sum -= length;
+			}
+		}
+		total.set( sum );
+	}
+
+	private File getObject( String name ) {
+		return new File( new File( objects, name.substring( 0, 2 ) ), name );
+	}
+
+	private ArrayList<File> listObjects() {
+		ArrayList<File> files = new ArrayList<File>();
+		File[] directories = objects.listFiles();
+		if( directories != null ) {
+			for( File directory : directories ) {
+				File[] children = directory.listFiles();
+				if( children != null ) {
+					for( File child : children ) {
+						if( !child.getName().endsWith( ".tmp" ) ) {
+							files.add( child );
+						}
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	private static String hash( byte[] bytes ) {
+		try {
+			byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( bytes );
+			StringBuilder builder = new StringBuilder( 2 * digest.length );
+			for( byte b : digest ) {
+				builder.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+			}
+			return builder.toString();
+		} catch( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	private static byte[] download( String url ) throws IOException {
+		URLConnection connection = new URL( url ).openConnection();
+		connection.setConnectTimeout( CONNECT_TIMEOUT );
+		connection.setReadTimeout( READ_TIMEOUT );
+		InputStream in = connection.getInputStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[ 1 << 16 ];
+			int count;
+			while( ( count = in.read( buffer ) ) > 0 ) {
+				out.write( buffer, 0, count );
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	public boolean isEnabled() {
+		return objects != null;
+	}
+
+	public String getStatistics() {
+		return "Image cache: " + hits.get() + " hits, " + misses.get() + " downloads, " + ( total.get() >> 20 ) + " of "
+				+ ( capacity >> 20 ) + " MB used.";
+	}
+}
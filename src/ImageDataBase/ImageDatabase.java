@@ -1,64 +1,153 @@
 package ImageDataBase;
 
-import java.awt.Color;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.imageio.ImageIO;
-
-import pixeljelly.scanners.Location;
-import pixeljelly.scanners.RasterScanner;
-
-public class ImageDatabase extends Thread {
-	private static int rn, gn, bn;
-	private static float longestDistance;
-	private static float[][] A;
-	private String[] urls;
-	private float[][] histograms;
-	public ImageDatabase( String[] urls) {
-		this.urls = urls;
-	}
-	
+/*
+ * The command line. Every command opens what it needs and hands it to the
+ * classes doing the work, queries go through a RetrievalEngine.
+ */
+public class ImageDatabase {
 	public static void main ( String[] args ) {
 		
 		try {
-			if( args.length == 6 ) {
-				if( args[0].equals("create") ) {
-					rn = Integer.valueOf( args[1] );
-					gn = Integer.valueOf( args[2] );
-					bn = Integer.valueOf( args[3] );
-					
-					/* Check if Rn,Gn,Bn are in valid range */
-					if( rn < 0|| rn > 8 || gn < 0 || gn > 8 || bn < 0  || bn > 8 || rn + gn + bn > 11 ) {
-						throw new Exception("Wrong command.");
-					}
-					
-					File input = new File( args[4] );
-					File output = new File( args[5] );
-					createImageDatabase( input,  output) ;
-					
-				} else { 
-					/* The first word of args is invalid*/
+			if( ( args.length == 6 || args.length == 9 ) && args[0].equals("create") ) {
+				int rn = Integer.valueOf( args[1] );
+				int gn = Integer.valueOf( args[2] );
+				int bn = Integer.valueOf( args[3] );
+				
+				/* Check if Rn,Gn,Bn are in valid range */
+				if( rn < 0|| rn > 8 || gn < 0 || gn > 8 || bn < 0  || bn > 8 || rn + gn + bn > 11 ) {
 					throw new Exception("Wrong command.");
 				}
-			} else if( args.length == 5 ) {
-				if( args[0].equals("query") ) {
-					File database = new File( args[2] );
-					File responseFile = new File( args[3]);
-					queryWithImage( args[1] ,  database, responseFile, Integer.valueOf( args[4] ) );
-					
-				} else { 
-					/* The first word of args is invalid*/
-					throw new Exception("Wrong command.");
+				
+				File input = new File( args[4] );
+				File output = new File( args[5] );
+				if( args.length == 9 ) {
+					/* Workers for the fetch, decode and histogram stages */
+					createImageDatabase( input, output, new IngestionPipeline( rn, gn, bn,
+							Integer.valueOf( args[6] ), Integer.valueOf( args[7] ), Integer.valueOf( args[8] ) ) );
+				} else {
+					createImageDatabase( input, output, new IngestionPipeline( rn, gn, bn ) );
+				}
+				
+			} else if( args.length == 3 && args[0].equals("import") ) {
+				/* Convert a text database into the binary format */
+				HistogramDatabase.importText( new File( args[1] ), new File( args[2] ) );
+			} else if( args.length == 3 && args[0].equals("export") ) {
+				/* Convert a binary database back into the text format */
+				HistogramDatabase.exportText( new File( args[1] ), new File( args[2] ) );
+			} else if( ( args.length == 3 || args.length == 4 ) && args[0].equals("project") ) {
+				/* Store a database projected by the factored similarity matrix, optionally truncated to a rank */
+				int rank = args.length == 4 ? Integer.valueOf( args[3] ) : 0;
+				HistogramDatabase.project( new File( args[1] ), new File( args[2] ), rank );
+			} else if( args.length == 4 && args[0].equals("encode") ) {
+				/* Store the vectors of a database as floats, 8 or 16 bit fixed point or sparse */
+				int encoding = args[3].equals("8") ? HistogramDatabase.FIXED_8 : args[3].equals("16") ? HistogramDatabase.FIXED_16
+						: args[3].equals("sparse") ? HistogramDatabase.SPARSE : HistogramDatabase.FLOAT;
+				HistogramDatabase.encode( new File( args[1] ), new File( args[2] ), encoding );
+			} else if( ( ( args.length >= 5 && args.length <= 7 ) || args.length == 10 ) && args[0].equals("query") ) {
+				File database = new File( args[2] );
+				File responseFile = new File( args[3]);
+				/* Optional: the number of scanning workers, then the number of filter components */
+				int workers = args.length >= 6 ? Integer.valueOf( args[5] ) : Runtime.getRuntime().availableProcessors();
+				int components = args.length >= 7 ? Integer.valueOf( args[6] ) : 0;
+				if( args.length == 10 ) {
+					/* Query at a resolution coarser than the database is stored in */
+					queryWithImage( args[1] ,  database, responseFile, Integer.valueOf( args[4] ), workers, components,
+							Integer.valueOf( args[7] ), Integer.valueOf( args[8] ), Integer.valueOf( args[9] ) );
+				} else {
+					queryWithImage( args[1] ,  database, responseFile, Integer.valueOf( args[4] ), workers, components );
 				}
+				
+			} else if( ( args.length == 5 || args.length == 6 || args.length == 9 ) && args[0].equals("batch") ) {
+				/* Score every url of a query list in one pass over the database, optionally at a coarser resolution */
+				int workers = args.length >= 6 ? Integer.valueOf( args[5] ) : Runtime.getRuntime().availableProcessors();
+				HistogramDatabase db = args.length == 9
+						? HistogramDatabase.open( new File( args[2] ), Integer.valueOf( args[6] ), Integer.valueOf( args[7] ), Integer.valueOf( args[8] ) )
+						: HistogramDatabase.open( new File( args[2] ) );
+				BatchQuery.run( new File( args[1] ), db, new File( args[2] ), new File( args[3] ), Integer.valueOf( args[4] ), workers );
+			} else if( ( args.length == 6 || args.length == 7 ) && args[0].equals("cascade") ) {
+				/* Rank coarse to fine, stages like 1/1/1:20000,2/2/2:2000 */
+				int workers = args.length == 7 ? Integer.valueOf( args[6] ) : Runtime.getRuntime().availableProcessors();
+				CascadeQuery.run( args[1], new File( args[2] ), new File( args[3] ), Integer.valueOf( args[4] ), args[5], workers );
+			} else if( ( args.length == 5 || args.length == 6 ) && args[0].equals("recall") ) {
+				/* Compare the cascade with exhaustive scans for sampled records of the database */
+				int workers = args.length == 6 ? Integer.valueOf( args[5] ) : Runtime.getRuntime().availableProcessors();
+				CascadeQuery.measureRecall( new File( args[1] ), Integer.valueOf( args[2] ), args[3], Integer.valueOf( args[4] ), workers );
+			} else if( ( args.length == 2 || args.length == 3 ) && args[0].equals("index") ) {
+				/* Build the vantage point tree query and range use, optionally with a leaf size */
+				VpTree.build( new File( args[1] ), args.length == 3 ? Integer.valueOf( args[2] ) : 0 );
+			} else if( args.length == 5 && args[0].equals("range") ) {
+				/* All images within a distance of the query */
+				rangeQueryWithImage( args[1], new File( args[2] ), new File( args[3] ), Float.valueOf( args[4] ) );
+			} else if( args.length >= 2 && args.length <= 5 && args[0].equals("hnsw") ) {
+				/* Build the graph index ann uses, optionally with M, efConstruction and rank, an up to date one with the same is kept */
+				HnswIndex.build( new File( args[1] ), args.length > 2 ? Integer.valueOf( args[2] ) : HnswIndex.DEFAULT_M,
+						args.length > 3 ? Integer.valueOf( args[3] ) : HnswIndex.DEFAULT_EF_CONSTRUCTION, args.length > 4 ? Integer.valueOf( args[4] ) : 0 );
+			} else if( ( args.length == 5 || args.length == 6 ) && args[0].equals("ann") ) {
+				/* Approximate query through the graph index, optionally with efSearch */
+				HnswIndex.run( args[1], new File( args[2] ), new File( args[3] ), Integer.valueOf( args[4] ),
+						args.length == 6 ? Integer.valueOf( args[5] ) : HnswIndex.DEFAULT_EF_SEARCH );
+			} else if( args.length == 5 && args[0].equals("ann-recall") ) {
+				/* Recall and latency of the graph index for a comma separated list of efSearch values */
+				HnswIndex.measureRecall( new File( args[1] ), Integer.valueOf( args[2] ), parseList( args[3] ), Integer.valueOf( args[4] ) );
+			} else if( args.length >= 2 && args.length <= 4 && args[0].equals("pq") ) {
+				/* Train product quantization codes, optionally with the number of subspaces and rank */
+				ProductQuantizer.train( new File( args[1] ), args.length > 2 ? Integer.valueOf( args[2] ) : ProductQuantizer.DEFAULT_SUBSPACES,
+						args.length > 3 ? Integer.valueOf( args[3] ) : 0, Runtime.getRuntime().availableProcessors() );
+			} else if( ( args.length == 5 || args.length == 6 ) && args[0].equals("pq-query") ) {
+				/* Query on the codes, optionally with the number of candidates rescored exactly */
+				ProductQuantizer.run( args[1], new File( args[2] ), new File( args[3] ), Integer.valueOf( args[4] ),
+						args.length == 6 ? Integer.valueOf( args[5] ) : ProductQuantizer.DEFAULT_RERANK );
+			} else if( args.length == 5 && args[0].equals("pq-recall") ) {
+				/* Recall and latency of the codes for a comma separated list of rerank depths */
+				ProductQuantizer.measureRecall( new File( args[1] ), Integer.valueOf( args[2] ), parseList( args[3] ), Integer.valueOf( args[4] ) );
+			} else if( args.length == 6 && args[0].equals("decode-check") ) {
+				/* Compare histograms of images decoded whole and subsampled to a pixel count */
+				ImageDecoder.verify( new File( args[4] ), Integer.valueOf( args[1] ), Integer.valueOf( args[2] ), Integer.valueOf( args[3] ),
+						Long.valueOf( args[5] ) );
+			} else if( args.length >= 3 && args[0].equals("serve") ) {
+				/* Keep the databases in memory and answer queries over http */
+				File[] databases = new File[ args.length - 2 ];
+				for( int i = 2; i < args.length; i++ ) {
+					databases[ i-2 ] = new File( args[i] );
+				}
+				new QueryServer( databases, Runtime.getRuntime().availableProcessors() ).start( Integer.valueOf( args[1] ) );
+			} else if( ( args.length == 3 || args.length == 6 ) && args[0].equals("append") ) {
+				/* Add new images of a url list to a binary database, optionally with stage workers */
+				HistogramDatabase db = HistogramDatabase.open( new File( args[1] ) );
+				IngestionPipeline pipeline = args.length == 6
+						? new IngestionPipeline( db.getRn(), db.getGn(), db.getBn(), Integer.valueOf( args[3] ), Integer.valueOf( args[4] ), Integer.valueOf( args[5] ) )
+						: new IngestionPipeline( db.getRn(), db.getGn(), db.getBn() );
+				appendToImageDatabase( new File( args[1] ), new File( args[2] ), pipeline );
+			} else if( ( args.length == 3 || args.length == 6 ) && args[0].equals("ingest") ) {
+				/* Add the images of a url list to a segmented database as new segments, the resolution creates one */
+				File directory = new File( args[1] );
+				SegmentedDatabase db = args.length == 6
+						? SegmentedDatabase.create( directory, Integer.valueOf( args[3] ), Integer.valueOf( args[4] ), Integer.valueOf( args[5] ) )
+						: SegmentedDatabase.open( directory );
+				db.ingest( new File( args[2] ), new IngestionPipeline( db.getRn(), db.getGn(), db.getBn() ) );
+			} else if( args.length == 2 && args[0].equals("merge") ) {
+				/* Merge the small segments of a segmented database */
+				SegmentedDatabase db = SegmentedDatabase.open( new File( args[1] ) );
+				while( db.merge() ) {
+				}
+			} else if( args.length == 3 && args[0].equals("delete") ) {
+				deleteFromImageDatabase( new File( args[1] ), new File( args[2] ) );
+			} else if( args.length == 2 && args[0].equals("compact") ) {
+				/* Drop deleted images for good */
+				HistogramDatabase.compact( new File( args[1] ) );
+				/* Records are renumbered, the graph index and the codes have to be built again */
+				HnswIndex.getIndexFile( new File( args[1] ) ).delete();
+				ProductQuantizer.getCodeFile( new File( args[1] ) ).delete();
 			} else {
 				/* The length of args is invalid*/
 				throw new Exception("Wrong command.");
@@ -68,268 +157,169 @@ public class ImageDatabase extends Thread {
 		}
 	}
 	
-	public static void queryWithImage( String queryUrl, File database, File responseFile, int K ) throws MalformedURLException, IOException {
-		/* Get resolution of pictures */
-		Scanner scanner = new Scanner( database );
-		String firstLine = scanner.nextLine();
-		String[] temp = firstLine.split(" ");
-		rn = Integer.valueOf( temp[0] );
-		gn = Integer.valueOf( temp[1] );
-		bn = Integer.valueOf( temp[2] );
-		
-		int nR = (int) Math.pow(2, rn);
-		int nG = (int) Math.pow(2, gn);
-		int nB = (int) Math.pow(2, bn);
-		longestDistance = (float) Math.sqrt( Math.pow(128/nR/256f-(256-128/nR)/256f , 2 )
-				+ Math.pow(128/nG/256f-(256-128/nG)/256f , 2 )
-				+ Math.pow(128/nB/256f-(256-128/nB)/256f , 2 ) );
-		A = getAOfH1H2();
-		float[] queryGram = getHistogram ( queryUrl );
-
-		ArrayList<Node> resultList = new ArrayList<Node>();
-		String[] information ;
-		float[] currentGram = new float[ nR * nG * nB];
-
-		while( scanner.hasNextLine() ) {
-			String line = scanner.nextLine();
-			information = line.split(" ");
-			if( information.length > 3 ) {
-
-				for( int i = 0 ; i < currentGram.length; i++ ) {
-					currentGram[i] = Float.valueOf( information[ i+3 ] );
-				}
-				
-				Node newNode = new Node();
-				newNode.distance = getQuadraticDistance( queryGram, currentGram );
-				newNode.urls = information[0] + " "+ information[1] +" "+ information[2];
-				resultList.add(newNode);
-			}
+	private static int[] parseList( String list ) {
+		String[] temp = list.split( "," );
+		int[] values = new int[ temp.length ];
+		for( int i = 0; i < temp.length; i++ ) {
+			values[i] = Integer.valueOf( temp[i].trim() );
 		}
-		
-		/* Now we have an unsorted ArrayList of Node */
-		Collections.sort( resultList,new Comparator<Node>(){
-		    public int compare(Node n1, Node n2) {
-		    	if(n1.distance - n2.distance > 0)
-		    		return 1;
-		    	else 
-		    		return -1;
-		    }
-		});
-		writeToResponseFile( queryUrl, resultList, responseFile, K );
+		return values;
 	}
 	
-	public static void writeToResponseFile( String queryUrl, ArrayList resultList , File responseFile, int K ) throws IOException {
-		FileWriter fileWriter = new FileWriter(responseFile);
-		fileWriter.write( "<!DOCTYPE html><html><head><title>Pictures</title></head><body>" );
-		fileWriter.write( "<div class=\"img\"> Query Image:<br> <a href=\""
-								+ queryUrl
-							    + "\"><img style=\"max-width:300px; max-height:300px;\" src=\""
-							    + queryUrl
-							    +"\"></a></div>"
-						);
-		fileWriter.write( "<div class=\"img\" style=\" display: inline-block; margin: 5px;\">"
-							+ "Resolution: Rn: "+rn+" Gn: " + gn+ " Bn: "+ bn+"  </div><br>"	);
-		int count = 0 ;
-		while( count < K ) {
-			Node temp = (Node) resultList.get(count);
-			String[] url = temp.urls.split(" ");
-			fileWriter.write( "<div style=\"display: inline-block; margin: 5px;padding:0;\" class=\"img\">"
-					+ "				<a style=\" display: block;height: 10px;width: 10px;background-color: #aaa; \"  href=\"" 
-								+ url[0]
-								+ "\" class=\"flickr\"></a> <p>distance: "+temp.distance +" </p><a href=\""
-								+ url[2]
-							    + "\"><img  src=\""
-							    + url[1]
-							    +"\"></a> </div>"
-						);
-			count++;
-		}
-		
-		fileWriter.write( "</body></html>" );
-		fileWriter.close();
+	public static void queryWithImage( String queryUrl, File database, File responseFile, int K ) throws MalformedURLException, IOException {
+		queryWithImage( queryUrl, database, responseFile, K, Runtime.getRuntime().availableProcessors() );
 	}
 	
-	public static void createImageDatabase( File input, File output) throws IOException {
-
-		/* Get the number of pictures in file */
-		Scanner scanner = new Scanner( input );
-		int count = 0;
-		while( scanner.hasNextLine() ) {
-			scanner.nextLine();
-			count++;
-		}
-		scanner = new Scanner( input );
-		ImageDatabase threads[];
-		threads = new ImageDatabase[10];
-		int numOfPicturePerThread = (int) Math.ceil( count/10f );
-		
-		/* For each thread, assign the url array and pass it into the thread. */
-		for( int threadNo = 0; threadNo < 10; threadNo++ ) {
-			String[] urlArray = new String[numOfPicturePerThread];
-			
-			for( int i = 0; i < numOfPicturePerThread; i++ ) {
-				if( scanner.hasNextLine() ){
-					urlArray[i] = scanner.nextLine();
-				} else {
-					break;
-				}
+	public static void queryWithImage( String queryUrl, File database, File responseFile, int K, int workers ) throws MalformedURLException, IOException {
+		queryWithImage( queryUrl, database, responseFile, K, workers, 0 );
+	}
+	
+	/* With components > 0 records are first filtered by a lower bound from that many leading components */
+	public static void queryWithImage( String queryUrl, File database, File responseFile, int K, int workers, int components ) throws MalformedURLException, IOException {
+		queryWithImage( queryUrl, database, responseFile, K, workers, components, -1, -1, -1 );
+	}
+	
+	/* At a resolution no finer than the stored one, the database bins are summed into it. Negative keeps the stored one. */
+	public static void queryWithImage( String queryUrl, File database, File responseFile, int K, int workers, int components, int rn, int gn, int bn ) throws MalformedURLException, IOException {
+		if( SegmentedDatabase.isSegmented( database ) ) {
+			if( rn >= 0 ) {
+				throw new IOException( "Segmented databases are queried at their own resolution." );
 			}
-			
-			threads[threadNo] = new ImageDatabase( urlArray );
+			querySegments( queryUrl, SegmentedDatabase.open( database ), responseFile, K, workers, components );
+			return;
 		}
-		scanner.close();
+		/* Binary databases are mapped and text databases parsed once */
+		RetrievalEngine engine = RetrievalEngine.open( database, rn, gn, bn );
 		
-		for(int i = 0; i < 10; i++) {
-			threads[i].start();
-		}
+		/* Projected databases are scanned with the Euclidean distance of projected histograms */
+		float[] queryVector = engine.getQueryVector( engine.getHistogram( queryUrl ) );
 		
-		for(int i = 0; i < 10; i++) {
-			try{
-				threads[i].join();
-			}
-			catch(InterruptedException e) { 
-				System.out.println(e);
+		/* Only the K best records are kept, their urls are read once the scan is done */
+		AtomicLong evaluations = new AtomicLong();
+		AtomicLong pruned = new AtomicLong();
+		ForkJoinPool pool = workers > 1 ? new ForkJoinPool( workers ) : null;
+		TopK best;
+		try {
+			best = engine.query( queryVector, K, pool, components, evaluations, pruned );
+		} finally {
+			if( pool != null ) {
+				pool.shutdown();
 			}
 		}
-		
-		/* Now we have all the histograms, write them to the destination file. */
-		FileWriter fileWriter = new FileWriter(output);
-		fileWriter.write( rn +" "+ gn + " " + bn + " \n" );
-		
-		for( int i = 0; i < 10; i++ ) {
-			String[] tempUrls = threads[i].getUrls();
-			float[][] tempHistograms = threads[i].getHistograms();
-			
-			for( int indexOfPicture = 0; indexOfPicture < tempUrls.length; indexOfPicture++) {
-				/* Since I use thread when creating database,
-				 * not all thread have a full "tempUrls" array,
-				 * so before writing url and histogram to file,
-				 * I check if tempUrls[indexOfPicture] is null. */
-				if( tempUrls[indexOfPicture] != null && tempUrls[indexOfPicture].length() > 0 ){
-					fileWriter.write( tempUrls[indexOfPicture] + " " );
-					
-					for( int j = 0; j < tempHistograms[indexOfPicture].length; j++) {
-						fileWriter.write( tempHistograms[indexOfPicture][j] +" " );
-					}
-					
-					fileWriter.write("\n");
-				} else {
-					break;
-				}
-			}
+		if( engine.hasIndex() && components == 0 ) {
+			System.out.println( "Computed " + evaluations.get() + " distances for " + engine.getDatabase().size() + " records." );
+		} else if( components > 0 ) {
+			System.out.println( "Pruned " + pruned.get() + " of " + engine.getDatabase().size() + " records." );
 		}
-
-		fileWriter.close();
+		engine.writeResponse( queryUrl, engine.getResults( best ), responseFile, K );
 	}
 	
-	public void run() {
-		histograms = new float[urls.length][];
-		for( int i = 0; i < urls.length; i++) {
-			// the url might be null, so we use try catch
-			try{
-				if( urls[i] !=null) {
-
-					String[] temp = urls[i].split(" ");
-					histograms[i] = getHistogram( temp[2] );
-				}
-			} catch( Exception e ){
-				System.out.println(e);
+	/* Over the segments of the database as they are when the query starts */
+	public static void querySegments( String queryUrl, SegmentedDatabase database, File responseFile, int K, int workers, int components ) throws IOException {
+		SegmentedDatabase.Snapshot snapshot = database.getSnapshot();
+		float[] queryGram = RetrievalEngine.getHistogram( ImageCache.getDefault().read( queryUrl ), database.getRn(), database.getGn(), database.getBn() );
+		ForkJoinPool pool = workers > 1 ? new ForkJoinPool( workers ) : null;
+		ArrayList<Node> resultList;
+		try {
+			resultList = snapshot.query( queryGram, K, pool, components );
+		} finally {
+			if( pool != null ) {
+				pool.shutdown();
 			}
 		}
+		System.out.println( "Scanned " + snapshot.size() + " records in " + snapshot.getSegments() + " segments." );
+		FileWriter fileWriter = new FileWriter( responseFile );
+		try {
+			RetrievalEngine.writeResponse( queryUrl, resultList, fileWriter, K, database.getRn(), database.getGn(), database.getBn() );
+		} finally {
+			fileWriter.close();
+		}
 	}
 	
-	public static float[] getHistogram( String url ) throws MalformedURLException, IOException {
-		try{
-
-			BufferedImage src = ImageIO.read( new URL( url ) );
-			int nR = (int) Math.pow(2, rn);
-			int nG = (int) Math.pow(2, gn);
-			int nB = (int) Math.pow(2, bn);
-			int length =  nR* nG * nB;
-			float numberOfPixel = src.getHeight() * src.getWidth();
-			float[] histogram = new float[ length ];
-			for( Location pt : new RasterScanner( src, false)) { 
-				Color c = new Color( src.getRGB( pt.col,  pt.row ) );
-				int red = c.getRed();
-				int green = c.getGreen();
-				int blue = c.getBlue();
-				int index = (red* nR/256)* nG * nB + green* nG/256  * nB+ blue * nB/256;
-				histogram[ index ] ++;
-			}
-			// Normalize histogram
-			for( int i=0; i<histogram.length; i++ ) {
-				histogram[i] /= numberOfPixel;
-			}
-			return histogram;
-			
-		} catch( Exception e ) {
-			System.out.println(e +" Please check if url of image is valid.");
-				return null;
-		}
+	/* Every image within radius of the query, found through the index of the database */
+	public static void rangeQueryWithImage( String queryUrl, File database, File responseFile, float radius ) throws MalformedURLException, IOException {
+		RetrievalEngine engine = RetrievalEngine.open( database );
+		float[] queryVector = engine.getQueryVector( engine.getHistogram( queryUrl ) );
+		AtomicLong evaluations = new AtomicLong();
+		ArrayList<Node> resultList = engine.range( queryVector, radius, evaluations );
+		System.out.println( "Found " + resultList.size() + " images with " + evaluations.get() + " distances for " + engine.getDatabase().size() + " records." );
+		engine.writeResponse( queryUrl, resultList, responseFile, resultList.size() );
 	}
 	
-	public static float getQuadraticDistance( float[] queryGram, float[] gram2 ) {
-		
-		float[] difference = getDifferenceOfH1H2( queryGram, gram2 );
-		float[] temp = new float[ difference.length ];
-		float result = 0;
-		for( int i = 0; i< temp.length; i++ ) {
-			for( int j = 0 ; j < temp.length; j++ ) {
-				temp[i] += difference[i] * A[j][i];
-			}
-		}
-		for( int i=0; i< temp.length; i++ ) {
-			result += temp[i]* difference[i];
+	public static void createImageDatabase( File input, File output, int rn, int gn, int bn ) throws IOException {
+		createImageDatabase( input, output, new IngestionPipeline( rn, gn, bn ) );
+	}
+	
+	/*
+	 * Histograms are written in input order as they are made, with checkpoints
+	 * an interrupted build resumes from, see TextDatabaseWriter.
+	 */
+	public static void createImageDatabase( File input, File output, IngestionPipeline pipeline ) throws IOException {
+		TextDatabaseWriter writer = new TextDatabaseWriter( output, pipeline.getRn(), pipeline.getGn(), pipeline.getBn() );
+		boolean complete = false;
+		try {
+			pipeline.run( input, writer, writer.getFirst() );
+			complete = true;
+		} finally {
+			writer.close( complete );
 		}
-		return (float) Math.sqrt(result);
 	}
 	
-	public static float[][] getAOfH1H2(){
-
-		int nR = (int) Math.pow(2, rn);
-		int nG = (int) Math.pow(2, gn);
-		int nB = (int) Math.pow(2, bn);
-		int length =  nR * nG * nB ;
-		float[][] A = new float[ length ][ length ];
+	/* Adds the urls of input whose page is not in the database yet, only those images are fetched */
+	public static void appendToImageDatabase( File database, File input, IngestionPipeline pipeline ) throws IOException {
+		HistogramDatabase db = HistogramDatabase.open( database );
+		HashSet<String> pages = new HashSet<String>();
+		for( int i = 0; i < db.size(); i++ ) {
+			if( !db.isDeleted( i ) ) {
+				pages.add( db.getPage( i ) );
+			}
+		}
 		
-		for( int row = 0 ; row < length; row++ ) {
-			for( int col = 0 ; col < length; col++ ) {
-				
-				float r1 = (row / nG / nB * (256/nR)  + 128 / nR) /256f ;
-				float g1 = (row % ( nG * nB ) /nB * (256/nG) + 128 / nG) /256f;
-				float b1 = (row % nB * (256/nB) + 128 / nB) /256f;
-				
-
-				float r2 = (col / nG / nB * (256/nR) + 128 / nR) /256f;
-				float g2 = (col % ( nG * nB ) /nB * (256/nG) + 128 / nG) /256f;
-				float b2 = (col % nB * (256/nB) + 128 / nB) /256f;
-				
-				A[row][col] = 1 - (float) Math.sqrt( Math.pow( r1 - r2 , 2 ) + Math.pow( g1 - g2 , 2 )+ Math.pow( b1 - b2 , 2 ) )/ longestDistance;
+		ArrayList<String> lines = new ArrayList<String>();
+		Scanner scanner = new Scanner( input );
+		while( scanner.hasNextLine() ) {
+			String line = scanner.nextLine().trim();
+			if( line.length() > 0 && pages.add( line.split(" ")[0] ) ) {
+				lines.add( line );
 			}
 		}
-		return A;
-	}
-	
-	public static float[] getDifferenceOfH1H2( float[] gram1, float[] gram2 ) {
+		scanner.close();
 		
-		float[] difference = new float[ gram1.length ];
-		for( int i = 0; i< gram1.length; i++ ) {
-			difference[i] = gram1[i] - gram2[i];
+		/* Histograms arrive in input order */
+		final ArrayList<String> urls = new ArrayList<String>();
+		final ArrayList<float[]> histograms = new ArrayList<float[]>();
+		pipeline.run( lines.iterator(), new IngestionPipeline.Sink() {
+			public void accept( int sequence, String line, float[] histogram ) {
+				urls.add( line );
+				histograms.add( histogram );
+			}
+		});
+		/* The index and codes only match the database before the append rewrites it */
+		HnswIndex index = HnswIndex.load( database, db );
+		ProductQuantizer quantizer = ProductQuantizer.load( database, db );
+		HistogramDatabase.append( database, urls.toArray( new String[ urls.size() ] ),
+				histograms.toArray( new float[ histograms.size() ][] ) );
+		System.out.println( "Appended " + urls.size() + " of " + lines.size() + " new images." );
+		db = HistogramDatabase.open( database );
+		if( index != null ) {
+			index.extend( database, db );
+		}
+		if( quantizer != null ) {
+			quantizer.extend( database, db );
 		}
-		return difference;
-
 	}
 	
-	public String[] getUrls(){
-		return urls;
-	}
-	public float[][] getHistograms(){
-		return histograms;
+	/* Every line of input is a page url, or a database line starting with one */
+	public static void deleteFromImageDatabase( File database, File input ) throws IOException {
+		HashSet<String> pages = new HashSet<String>();
+		Scanner scanner = new Scanner( input );
+		while( scanner.hasNextLine() ) {
+			String line = scanner.nextLine().trim();
+			if( line.length() > 0 ) {
+				pages.add( line.split(" ")[0] );
+			}
+		}
+		scanner.close();
+		System.out.println( "Deleted " + HistogramDatabase.delete( database, pages ) + " images." );
 	}
-	
 }
-
-class Node {
-	float distance;
-	String urls;
-}
\ No newline at end of file
@@ -0,0 +1,121 @@
+package ImageDataBase;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Scanner;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/*
+ * Decodes images for histograms. A colour histogram hardly changes when
+ * only every n-th pixel of every n-th row is counted, so with a target
+ * pixel count the reader is asked for a subsampled image of about that
+ * many pixels, which bounds the decoded raster of large originals. Images
+ * smaller than the target are decoded whole.
+ *
+ * The target every command uses is the system property cbir.pixels (0 or
+ * unset decodes whole images). verify compares subsampled with whole
+ * decoding for a url list.
+ */
+public class ImageDecoder {
+	private static final long DEFAULT_TARGET = Long.getLong( "cbir.pixels", 0 );
+
+	public static BufferedImage decode( byte[] bytes ) throws IOException {
+		return decode( bytes, DEFAULT_TARGET );
+	}
+
+	/* null when no reader knows the format, as ImageIO.read */
+	public static BufferedImage decode( byte[] bytes, long targetPixels ) throws IOException {
+		if( targetPixels <= 0 ) {
+			return ImageIO.read( new ByteArrayInputStream( bytes ) );
+		}
+		ImageInputStream in = ImageIO.createImageInputStream( new ByteArrayInputStream( bytes ) );
+		if( in == null ) {
+			return null;
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders( in );
+			if( !readers.hasNext() ) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput( in, true, true );
+				ImageReadParam param = reader.getDefaultReadParam();
+				int step = getStep( (long) reader.getWidth( 0 ) * reader.getHeight( 0 ), targetPixels );
+				if( step > 1 ) {
+					param.setSourceSubsampling( step, step, 0, 0 );
+				}
+				return reader.read( 0, param );
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/* The smallest step that keeps pixels / step^2 within the target */
+	static int getStep( long pixels, long targetPixels ) {
+		int step = (int) Math.ceil( Math.sqrt( (double) pixels / targetPixels ) );
+		return Math.max( 1, step );
+	}
+
+	/*
+	 * Decodes every image of a url list whole and subsampled to a target and
+	 * prints the mean and largest quadratic distance between the histograms,
+	 * with the decode time and pixels of both.
+	 */
+	public static void verify( File input, int rn, int gn, int bn, long targetPixels ) throws IOException {
+		ImageCache cache = ImageCache.getDefault();
+		QuadraticForm form = new QuadraticForm( rn, gn, bn );
+		int images = 0;
+		double sum = 0, largest = 0;
+		long fullTime = 0, sampledTime = 0, fullPixels = 0, sampledPixels = 0;
+		Scanner scanner = new Scanner( input );
+		try {
+			while( scanner.hasNextLine() ) {
+				String line = scanner.nextLine().trim();
+				if( line.length() == 0 ) {
+					continue;
+				}
+				String[] temp = line.split(" ");
+				String url = temp.length > 2 ? temp[2] : temp[ temp.length - 1 ];
+				try {
+					byte[] bytes = cache.fetch( url );
+					long start = System.nanoTime();
+					BufferedImage full = decode( bytes, 0 );
+					fullTime += System.nanoTime() - start;
+					start = System.nanoTime();
+					BufferedImage sampled = decode( bytes, targetPixels );
+					sampledTime += System.nanoTime() - start;
+					if( full == null || sampled == null ) {
+						throw new IOException( "Cannot decode " + url );
+					}
+					fullPixels += (long) full.getWidth() * full.getHeight();
+					sampledPixels += (long) sampled.getWidth() * sampled.getHeight();
+					float distance = form.getDistance( RetrievalEngine.getHistogram( full, rn, gn, bn ),
+							RetrievalEngine.getHistogram( sampled, rn, gn, bn ) );
+					sum += distance;
+					largest = Math.max( largest, distance );
+					images++;
+				} catch( IOException e ) {
+					System.out.println( e );
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+		if( images > 0 ) {
+			System.out.println( images + " images, distance to the whole histogram " + sum / images + " on average and " + largest
+					+ " at most. Whole: " + fullPixels / images + " pixels and " + fullTime / 1000000.0 / images
+					+ " ms per image, subsampled: " + sampledPixels / images + " pixels and " + sampledTime / 1000000.0 / images + " ms." );
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package ImageDataBase;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Builds histograms for a url list in three stages, fetch, decode and
+ * histogram, connected by bounded queues. Every worker takes the next item
+ * of its queue, so a slow image only holds up the worker it landed on, and
+ * the bounded queues keep the number of images in memory small.
+ *
+ * Fetching is I/O bound and gets many more workers than the CPU bound
+ * stages by default. Images are fetched through the image cache, see
+ * ImageCache.
+ *
+ * Histograms finish out of order and are handed to the sink in line order.
+ * One that finishes early waits for the lines before it, and no line is
+ * read more than WINDOW lines ahead of the oldest one not yet handed over,
+ * so a slow image bounds what waits behind it.
+ */
+public class IngestionPipeline {
+	private static final long PROGRESS_INTERVAL = 5000;
+	private static final int WINDOW = 1024;
+
+	private final int rn, gn, bn;
+	private final int fetchers, decoders, histogrammers;
+
+	private final AtomicLong read = new AtomicLong();
+	private final AtomicLong fetched = new AtomicLong();
+	private final AtomicLong decoded = new AtomicLong();
+	private final AtomicLong done = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/* Receives each histogram with the line number of its url, in line order and one at a time. */
+	public interface Sink {
+		void accept( int sequence, String urls, float[] histogram ) throws IOException;
+	}
+
+	private static class Item {
+		final int sequence;
+		final String urls;
+		byte[] bytes;
+		BufferedImage image;
+		/* null when the line failed or is empty */
+		float[] histogram;
+
+		Item( int sequence, String urls ) {
+			this.sequence = sequence;
+			this.urls = urls;
+		}
+	}
+
+	private static final Item END = new Item( -1, null );
+
+	public IngestionPipeline( int rn, int gn, int bn ) {
+		this( rn, gn, bn, 4 * Runtime.getRuntime().availableProcessors(),
+				Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() );
+	}
+
+	public IngestionPipeline( int rn, int gn, int bn, int fetchers, int decoders, int histogrammers ) {
+		this.rn = rn;
+		this.gn = gn;
+		this.bn = bn;
+		this.fetchers = Math.max( 1, fetchers );
+		this.decoders = Math.max( 1, decoders );
+		this.histogrammers = Math.max( 1, histogrammers );
+	}
+
+	/* Reads the url list once, lines are "page small large" and the large image is fetched. */
+	public void run( File input, Sink sink ) throws IOException {
+		run( input, sink, 0 );
+	}
+
+	/* Starting at line first of the url list, the lines before it are skipped but keep their numbers. */
+	public void run( File input, Sink sink, int first ) throws IOException {
+		final Scanner scanner = new Scanner( input );
+		try {
+			run( new Iterator<String>() {
+				public boolean hasNext() {
+					return scanner.hasNextLine();
+				}
+				public String next() {
+					return scanner.nextLine();
+				}
+			}, sink, first );
+		} finally {
+			scanner.close();
+		}
+	}
+
+	/* The sequence of a histogram is the position of its line. */
+	public void run( Iterator<String> lines, Sink sink ) throws IOException {
+		run( lines, sink, 0 );
+	}
+
+	public void run( Iterator<String> lines, Sink sink, int first ) throws IOException {
+		final Delivery delivery = new Delivery( sink, first );
+		final BlockingQueue<Item> fetchQueue = new ArrayBlockingQueue<Item>( 2 * fetchers );
+		final BlockingQueue<Item> decodeQueue = new ArrayBlockingQueue<Item>( 2 * decoders );
+		final BlockingQueue<Item> histogramQueue = new ArrayBlockingQueue<Item>( 2 * histogrammers );
+		final ImageCache cache = ImageCache.getDefault();
+
+		Stage fetch = new Stage( "fetch", fetchers, delivery, fetchQueue, decodeQueue, decoders ) {
+			void process( Item item ) throws Exception {
+				String[] temp = item.urls.split(" ");
+				item.bytes = cache.fetch( temp.length > 2 ? temp[2] : temp[ temp.length - 1 ] );
+				fetched.incrementAndGet();
+				next.put( item );
+			}
+		};
+		Stage decode = new Stage( "decode", decoders, delivery, decodeQueue, histogramQueue, histogrammers ) {
+			void process( Item item ) throws Exception {
+				item.image = ImageDecoder.decode( item.bytes );
+				item.bytes = null;
+				if( item.image == null ) {
+					throw new IOException( "Cannot decode " + item.urls );
+				}
+				decoded.incrementAndGet();
+				next.put( item );
+			}
+		};
+		Stage histogram = new Stage( "histogram", histogrammers, delivery, histogramQueue, null, 0 ) {
+			void process( Item item ) throws Exception {
+				item.histogram = RetrievalEngine.getHistogram( item.image, rn, gn, bn );
+				item.image = null;
+				done.incrementAndGet();
+				delivery.complete( item );
+			}
+		};
+
+		fetch.start();
+		decode.start();
+		histogram.start();
+
+		Thread progress = new Thread( new Runnable() {
+			public void run() {
+				try {
+					while( true ) {
+						Thread.sleep( PROGRESS_INTERVAL );
+						System.out.println( getProgress() );
+					}
+				} catch( InterruptedException e ) {
+					return;
+				}
+			}
+		});
+		progress.setDaemon( true );
+		progress.start();
+
+		try {
+			int sequence = 0;
+			while( lines.hasNext() ) {
+				String line = lines.next().trim();
+				if( sequence >= first ) {
+					delivery.window.acquire();
+					if( line.length() > 0 ) {
+						fetchQueue.put( new Item( sequence, line ) );
+						read.incrementAndGet();
+					} else {
+						delivery.complete( new Item( sequence, null ) );
+					}
+				}
+				sequence++;
+			}
+			fetch.finish();
+			histogram.await();
+		} catch( InterruptedException e ) {
+			throw new IOException( e );
+		} finally {
+			progress.interrupt();
+		}
+		System.out.println( getProgress() );
+		if( cache.isEnabled() ) {
+			System.out.println( cache.getStatistics() );
+		}
+		if( delivery.error != null ) {
+			throw delivery.error;
+		}
+	}
+
+	public String getProgress() {
+		return "Read " + read.get() + ", fetched " + fetched.get() + ", decoded " + decoded.get()
+				+ ", histograms " + done.get() + ", failed " + failed.get();
+	}
+
+	public long getCompleted() {
+		return done.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public int getRn() {
+		return rn;
+	}
+
+	public int getGn() {
+		return gn;
+	}
+
+	public int getBn() {
+		return bn;
+	}
+
+	/* Hands items to the sink in line order, skipping over failed and empty lines. */
+	private static class Delivery {
+		final Sink sink;
+		final Semaphore window = new Semaphore( WINDOW );
+		final HashMap<Integer, Item> waiting = new HashMap<Integer, Item>();
+		int next;
+		IOException error;
+
+		Delivery( Sink sink, int first ) {
+			this.sink = sink;
+			next = first;
+		}
+
+		synchronized void complete( Item item ) {
+			waiting.put( item.sequence, item );
+			Item ready;
+			while( ( ready = waiting.remove( next ) ) != null ) {
+				next++;
+				window.release();
+				if( ready.histogram != null && error == null ) {
+					try {
+						sink.accept( ready.sequence, ready.urls, ready.histogram );
+					} catch( IOException e ) {
+						error = e;
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * A pool of workers draining one queue. When the last worker of a stage
+	 * sees the end marker it passes one marker per worker to the next stage.
+	 */
+	private abstract class Stage {
+		final String name;
+		final Thread[] workers;
+		final Delivery delivery;
+		final BlockingQueue<Item> queue;
+		final BlockingQueue<Item> next;
+		final int nextWorkers;
+		final AtomicInteger running;
+
+		Stage( String name, int count, Delivery delivery, BlockingQueue<Item> queue, BlockingQueue<Item> next, int nextWorkers ) {
+			this.name = name;
+			this.delivery = delivery;
+			this.queue = queue;
+			this.next = next;
+			this.nextWorkers = nextWorkers;
+			workers = new Thread[ count ];
+			running = new AtomicInteger( count );
+		}
+
+		abstract void process( Item item ) throws Exception;
+
+		void start() {
+			for( int i = 0; i < workers.length; i++ ) {
+				workers[i] = new Thread( new Runnable() {
+					public void run() {
+						work();
+					}
+				}, name + "-" + i );
+				workers[i].start();
+			}
+		}
+
+		/* An error on one item, out of memory on a huge image say, fails that item and leaves the worker running. */
+		void work() {
+			try {
+				while( true ) {
+					Item item = queue.take();
+					if( item == END ) {
+						break;
+					}
+					try {
+						process( item );
+					} catch( InterruptedException e ) {
+						throw e;
+					} catch( Throwable e ) {
+						failed.incrementAndGet();
+						item.bytes = null;
+						item.image = null;
+						System.out.println( e + " Please check if url of image is valid." );
+						delivery.complete( item );
+					}
+				}
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			} finally {
+				/* The last worker to stop, however it stops, ends the next stage */
+				if( running.decrementAndGet() == 0 && next != null ) {
+					boolean interrupted = Thread.interrupted();
+					for( int i = 0; i < nextWorkers; i++ ) {
+						while( true ) {
+							try {
+								next.put( END );
+								break;
+							} catch( InterruptedException e ) {
+								interrupted = true;
+							}
+						}
+					}
+					if( interrupted ) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+
+		void finish() throws InterruptedException {
+			for( int i = 0; i < workers.length; i++ ) {
+				queue.put( END );
+			}
+		}
+
+		void await() throws InterruptedException {
+			for( Thread worker : workers ) {
+				worker.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package ImageDataBase;
+
+import java.util.List;
+
+/* Just enough JSON for query results. */
+class Json {
+
+	static String result( String queryUrl, List<Node> resultList ) {
+		StringBuilder builder = new StringBuilder();
+		builder.append( "{\"query\":" ).append( quote( queryUrl ) ).append( ",\"results\":[" );
+		for( int i = 0; i < resultList.size(); i++ ) {
+			Node node = resultList.get( i );
+			String[] url = node.urls.split(" ");
+			if( i > 0 ) {
+				builder.append( ',' );
+			}
+			builder.append( "{\"distance\":" ).append( number( node.distance ) )
+					.append( ",\"page\":" ).append( quote( url[0] ) )
+					.append( ",\"small\":" ).append( quote( url[1] ) )
+					.append( ",\"large\":" ).append( quote( url[2] ) ).append( '}' );
+		}
+		return builder.append( "]}" ).toString();
+	}
+
+	static String number( float value ) {
+		return Float.isNaN( value ) || Float.isInfinite( value ) ? "null" : String.valueOf( value );
+	}
+
+	static String quote( String value ) {
+		StringBuilder builder = new StringBuilder( value.length() + 2 ).append( '"' );
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			switch( c ) {
+			case '"':
+				builder.append( "\\\"" );
+				break;
+			case '\\':
+				builder.append( "\\\\" );
+				break;
+			case '\n':
+				builder.append( "\\n" );
+				break;
+			case '\r':
+				builder.append( "\\r" );
+				break;
+			case '\t':
+				builder.append( "\\t" );
+				break;
+			default:
+				if( c < 0x20 ) {
+					builder.append( String.format( "\\u%04x", (int) c ) );
+				} else {
+					builder.append( c );
+				}
+			}
+		}
+		return builder.append( '"' ).toString();
+	}
+}
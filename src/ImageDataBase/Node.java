@@ -0,0 +1,6 @@
+package ImageDataBase;
+
+class Node {
+	float distance;
+	String urls;
+}
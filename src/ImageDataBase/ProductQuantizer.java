@@ -0,0 +1,469 @@
+package ImageDataBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Product quantization of the records of a database, so a catalogue that
+ * does not fit in memory as histograms is held as a few dozen bytes per image.
+ *
+ * Records are quantized in the factored embedding of the quadratic form,
+ * where it is Euclidean (the stored vectors of a projected database, or the
+ * histograms projected by the positive components of the similarity
+ * matrix). The embedding is cut into subspaces, k-means trains 256
+ * centroids for each on a sample of the records, and every record is stored
+ * as the byte index of its nearest centroid per subspace.
+ *
+ * A query computes its squared distance to every centroid once, the
+ * distance to a record is then a sum of one table lookup per subspace.
+ * The best rerank records by that estimate are rescored with the exact
+ * distance from the database on disk, with rerank 0 the estimates are
+ * returned as they are.
+ *
+ * Saved as "<database>.pq" (little endian): a 64 byte header with magic,
+ * version, size, dims, subspaces, centroids per subspace, rank, whether the
+ * embedding is the stored vectors and the length of the database they were
+ * saved for, the first dimension of every subspace and the end, the
+ * codebooks, then the codes record by record. Codes whose size or database
+ * length no longer match are out of date. Appends are encoded with the
+ * trained codebooks, compact removes the file.
+ */
+public class ProductQuantizer {
+	public static final int MAGIC = 0x51504243; // "CBPQ"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 64;
+	public static final int DEFAULT_SUBSPACES = 32;
+	public static final int DEFAULT_RERANK = 100;
+	private static final int CENTROIDS = 256;
+	private static final int TRAINING_SAMPLES = 65536;
+	private static final int ITERATIONS = 25;
+	private static final int MIN_RECORDS_PER_TASK = 256;
+	/* The codes are one array */
+	private static final int MAX_CODES = Integer.MAX_VALUE - 8;
+
+	private final int subspaces;
+	private final int centroids;
+	private final int dims;
+	private final int rank;
+	private final boolean stored;
+	/* Subspace s is dimensions starts[s] to starts[s+1] */
+	private final int[] starts;
+	/* codebooks[s][c * length + i] is dimension i of centroid c in subspace s */
+	private final float[][] codebooks;
+	private byte[] codes = new byte[0];
+	private int size;
+	private float[][] basis;
+
+	private ProductQuantizer( int subspaces, int centroids, int dims, int rank, boolean stored ) {
+		this.subspaces = subspaces;
+		this.centroids = centroids;
+		this.dims = dims;
+		this.rank = rank;
+		this.stored = stored;
+		starts = new int[ subspaces + 1 ];
+		for( int s = 0; s <= subspaces; s++ ) {
+			starts[s] = s * dims / subspaces;
+		}
+		codebooks = new float[ subspaces ][];
+	}
+
+	public static File getCodeFile( File database ) {
+		return new File( database.getPath() + ".pq" );
+	}
+
+	/* Work on a range of records, split over a pool. */
+	private interface Body {
+		void run( int from, int to );
+	}
+
+	private static class Range extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Body body;
+		private final int from, to;
+
+		Range( Body body, int from, int to ) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if( to - from <= MIN_RECORDS_PER_TASK ) {
+				body.run( from, to );
+			} else {
+				int middle = ( from + to ) >>> 1;
+				invokeAll( new Range( body, from, middle ), new Range( body, middle, to ) );
+			}
+		}
+	}
+
+	/*
+	 * Trains the codebooks on a sample of the live records of a database,
+	 * encodes every record and saves the codes. rank <= 0 keeps every
+	 * positive component of a raw database.
+	 */
+	public static ProductQuantizer train( File database, int subspaces, int rank, int workers ) throws IOException {
+		HistogramDatabase db = HistogramDatabase.open( database );
+		long start = System.nanoTime();
+		float[][] basis = db.isProjected() ? null : SimilarityCache.get( db, database ).factor( rank );
+		int dims = basis == null ? db.getDimensions() : basis.length;
+		ArrayList<Integer> live = new ArrayList<Integer>();
+		for( int i = 0; i < db.size(); i++ ) {
+			if( !db.isDeleted( i ) ) {
+				live.add( i );
+			}
+		}
+		if( live.isEmpty() ) {
+			throw new IOException( database + " has no records to train on." );
+		}
+		ProductQuantizer quantizer = new ProductQuantizer( Math.max( 1, Math.min( subspaces, dims ) ),
+				Math.min( CENTROIDS, live.size() ), dims, rank, db.isProjected() );
+		quantizer.basis = basis;
+
+		ForkJoinPool pool = new ForkJoinPool( Math.max( 1, workers ) );
+		try {
+			Random random = new Random( 1 );
+			final int[] sample = new int[ Math.min( TRAINING_SAMPLES, live.size() ) ];
+			for( int i = 0; i < sample.length; i++ ) {
+				sample[i] = live.set( i + random.nextInt( live.size() - i ), live.get( i ) );
+			}
+			final float[][] vectors = quantizer.embed( db, sample, pool );
+			for( int s = 0; s < quantizer.subspaces; s++ ) {
+				quantizer.codebooks[s] = quantizer.trainSubspace( vectors, s, random, pool );
+			}
+			System.out.println( "Trained " + quantizer.subspaces + " codebooks of " + quantizer.centroids + " centroids on "
+					+ sample.length + " records in " + ( System.nanoTime() - start ) / 1000000 + " ms." );
+			quantizer.encode( db, pool );
+		} finally {
+			pool.shutdown();
+		}
+		quantizer.save( database );
+		System.out.println( "Encoded " + quantizer.size + " records in " + quantizer.subspaces + " bytes each, "
+				+ 4 * db.getDimensions() + " bytes as floats." );
+		return quantizer;
+	}
+
+	/*
+	 * Encodes the records after the ones with codes and saves them. An
+	 * append rewrites the database, so the codes are loaded before it and
+	 * extended with the new database after it.
+	 */
+	void extend( File database, HistogramDatabase db ) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			encode( db, pool );
+		} finally {
+			pool.shutdown();
+		}
+		save( database );
+	}
+
+	/* The embedded vectors of some records. */
+	private float[][] embed( final HistogramDatabase db, final int[] records, ForkJoinPool pool ) {
+		final float[][] vectors = new float[ records.length ][];
+		pool.invoke( new Range( new Body() {
+			public void run( int from, int to ) {
+				float[] histogram = new float[ db.getDimensions() ];
+				for( int i = from; i < to; i++ ) {
+					vectors[i] = new float[ dims ];
+					db.read( records[i], histogram );
+					embed( histogram, vectors[i] );
+				}
+			}
+		}, 0, records.length ) );
+		return vectors;
+	}
+
+	private void embed( float[] vector, float[] out ) {
+		if( basis == null ) {
+			System.arraycopy( vector, 0, out, 0, dims );
+		} else {
+			QuadraticForm.project( basis, vector, out );
+		}
+	}
+
+	/* k-means on one subspace of the training vectors, starting from distinct random ones. */
+	private float[] trainSubspace( final float[][] vectors, int s, Random random, ForkJoinPool pool ) {
+		final int offset = starts[s];
+		final int length = starts[ s + 1 ] - offset;
+		final float[] codebook = new float[ centroids * length ];
+		for( int c = 0; c < centroids; c++ ) {
+			System.arraycopy( vectors[ c * vectors.length / centroids ], offset, codebook, c * length, length );
+		}
+		final int[] assignment = new int[ vectors.length ];
+		Arrays.fill( assignment, -1 );
+		double[] sums = new double[ centroids * length ];
+		int[] counts = new int[ centroids ];
+		for( int iteration = 0; iteration < ITERATIONS; iteration++ ) {
+			final AtomicLong changed = new AtomicLong();
+			pool.invoke( new Range( new Body() {
+				public void run( int from, int to ) {
+					int moved = 0;
+					for( int i = from; i < to; i++ ) {
+						int nearest = getNearest( vectors[i], offset, codebook, length );
+						if( nearest != assignment[i] ) {
+							assignment[i] = nearest;
+							moved++;
+						}
+					}
+					changed.addAndGet( moved );
+				}
+			}, 0, vectors.length ) );
+			if( changed.get() == 0 ) {
+				break;
+			}
+			Arrays.fill( sums, 0 );
+			Arrays.fill( counts, 0 );
+			for( int i = 0; i < vectors.length; i++ ) {
+				int base = assignment[i] * length;
+				for( int j = 0; j < length; j++ ) {
+					sums[ base + j ] += vectors[i][ offset + j ];
+				}
+				counts[ assignment[i] ]++;
+			}
+			for( int c = 0; c < centroids; c++ ) {
+				if( counts[c] == 0 ) {
+					/* An empty cluster restarts at a random training vector */
+					System.arraycopy( vectors[ random.nextInt( vectors.length ) ], offset, codebook, c * length, length );
+					continue;
+				}
+				for( int j = 0; j < length; j++ ) {
+					codebook[ c * length + j ] = (float) ( sums[ c * length + j ] / counts[c] );
+				}
+			}
+		}
+		return codebook;
+	}
+
+	private int getNearest( float[] vector, int offset, float[] codebook, int length ) {
+		int nearest = 0;
+		float best = Float.MAX_VALUE;
+		for( int c = 0; c < centroids; c++ ) {
+			float sum = 0;
+			int base = c * length;
+			for( int j = 0; j < length && sum < best; j++ ) {
+				float difference = vector[ offset + j ] - codebook[ base + j ];
+				sum += difference * difference;
+			}
+			if( sum < best ) {
+				best = sum;
+				nearest = c;
+			}
+		}
+		return nearest;
+	}
+
+	/* Codes for the records from size to the end of the database. */
+	private void encode( final HistogramDatabase db, ForkJoinPool pool ) throws IOException {
+		final int first = size;
+		final byte[] grown = Arrays.copyOf( codes, getCodeLength( db.size(), subspaces ) );
+		pool.invoke( new Range( new Body() {
+			public void run( int from, int to ) {
+				float[] histogram = new float[ db.getDimensions() ];
+				float[] vector = new float[ dims ];
+				for( int record = from; record < to; record++ ) {
+					db.read( record, histogram );
+					embed( histogram, vector );
+					for( int s = 0; s < subspaces; s++ ) {
+						grown[ record * subspaces + s ] = (byte) getNearest( vector, starts[s], codebooks[s], starts[ s + 1 ] - starts[s] );
+					}
+				}
+			}
+		}, first, db.size() ) );
+		codes = grown;
+		size = db.size();
+	}
+
+	private static int getCodeLength( int records, int subspaces ) throws IOException {
+		long length = (long) records * subspaces;
+		if( length > MAX_CODES ) {
+			throw new IOException( "The codes of " + records + " records in " + subspaces + " subspaces take " + length
+					+ " bytes, more than the " + MAX_CODES + " of one array. Use fewer subspaces." );
+		}
+		return (int) length;
+	}
+
+	/* Squared distances of the embedded query to every centroid, table[s * centroids + c]. */
+	private float[] getTable( float[] vector ) {
+		float[] table = new float[ subspaces * centroids ];
+		for( int s = 0; s < subspaces; s++ ) {
+			int length = starts[ s + 1 ] - starts[s];
+			for( int c = 0; c < centroids; c++ ) {
+				float sum = 0;
+				for( int j = 0; j < length; j++ ) {
+					float difference = vector[ starts[s] + j ] - codebooks[s][ c * length + j ];
+					sum += difference * difference;
+				}
+				table[ s * centroids + c ] = sum;
+			}
+		}
+		return table;
+	}
+
+	/*
+	 * The K best records for a query given as the database is scanned. With
+	 * rerank > 0 the best rerank records by the code estimate are rescored
+	 * exactly, adding their number to evaluations, otherwise the estimates
+	 * are returned.
+	 */
+	public TopK search( HistogramDatabase db, float[] query, QuadraticForm form, int K, int rerank, AtomicLong evaluations ) {
+		float[] vector = new float[ dims ];
+		embed( query, vector );
+		float[] table = getTable( vector );
+		TopK estimated = new TopK( Math.max( K, rerank ) );
+		for( int record = 0, base = 0; record < size; record++, base += subspaces ) {
+			float sum = 0;
+			for( int s = 0, t = 0; s < subspaces; s++, t += centroids ) {
+				sum += table[ t + ( codes[ base + s ] & 0xFF ) ];
+			}
+			if( sum < estimated.threshold() && !db.isDeleted( record ) ) {
+				estimated.offer( sum, record );
+			}
+		}
+		if( rerank <= 0 ) {
+			int[] records = estimated.sortedRecords();
+			float[] distances = estimated.sortedDistances();
+			TopK best = new TopK( K );
+			for( int i = 0; i < records.length; i++ ) {
+				best.offer( (float) Math.sqrt( distances[i] ), records[i] );
+			}
+			return best;
+		}
+		int[] candidates = estimated.sortedRecords();
+		/* In record order, so the rescoring reads the database front to back */
+		Arrays.sort( candidates );
+		if( evaluations != null ) {
+			evaluations.addAndGet( candidates.length );
+		}
+		return DatabaseScan.scan( db, query, form, K, null, candidates, 0, null );
+	}
+
+	/* The codes of a database, or null when there are none or they do not fit the database. */
+	public static ProductQuantizer load( File database, HistogramDatabase db ) throws IOException {
+		File file = getCodeFile( database );
+		if( !file.exists() ) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ).order( ByteOrder.LITTLE_ENDIAN );
+			if( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) > VERSION ) {
+				throw new IOException( file + " is not a product quantizer." );
+			}
+			int size = buffer.getInt( 8 );
+			ProductQuantizer quantizer = new ProductQuantizer( buffer.getInt( 16 ), buffer.getInt( 20 ), buffer.getInt( 12 ),
+					buffer.getInt( 24 ), buffer.getInt( 28 ) != 0 );
+			if( buffer.getInt( 4 ) != VERSION || size != db.size() || buffer.getLong( 32 ) != database.length()
+					|| quantizer.stored != db.isProjected() ) {
+				System.out.println( "The codes " + file + " are out of date, train them again." );
+				return null;
+			}
+			buffer.position( HEADER_SIZE + 4 * ( quantizer.subspaces + 1 ) );
+			for( int s = 0; s < quantizer.subspaces; s++ ) {
+				quantizer.codebooks[s] = new float[ quantizer.centroids * ( quantizer.starts[ s + 1 ] - quantizer.starts[s] ) ];
+				buffer.asFloatBuffer().get( quantizer.codebooks[s] );
+				buffer.position( buffer.position() + 4 * quantizer.codebooks[s].length );
+			}
+			quantizer.codes = new byte[ getCodeLength( size, quantizer.subspaces ) ];
+			buffer.get( quantizer.codes );
+			quantizer.size = size;
+			if( !quantizer.stored ) {
+				quantizer.basis = SimilarityCache.get( db, database ).factor( quantizer.rank );
+			}
+			return quantizer;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void save( File database ) throws IOException {
+		File file = getCodeFile( database );
+		File temporary = new File( file.getPath() + ".tmp" );
+		RandomAccessFile raf = new RandomAccessFile( temporary, "rw" );
+		try {
+			raf.setLength( 0 );
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate( 1 << 16 ).order( ByteOrder.LITTLE_ENDIAN );
+			buffer.putInt( MAGIC ).putInt( VERSION ).putInt( size ).putInt( dims ).putInt( subspaces ).putInt( centroids )
+					.putInt( rank ).putInt( stored ? 1 : 0 ).putLong( database.length() );
+			buffer.position( HEADER_SIZE );
+			for( int start : starts ) {
+				buffer.putInt( start );
+			}
+			for( float[] codebook : codebooks ) {
+				for( float value : codebook ) {
+					if( !buffer.hasRemaining() ) {
+						drain( channel, buffer );
+					}
+					buffer.putFloat( value );
+				}
+			}
+			drain( channel, buffer );
+			channel.write( ByteBuffer.wrap( codes, 0, size * subspaces ) );
+		} finally {
+			raf.close();
+		}
+		Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	private static void drain( FileChannel channel, ByteBuffer buffer ) throws IOException {
+		buffer.flip();
+		while( buffer.hasRemaining() ) {
+			channel.write( buffer );
+		}
+		buffer.clear();
+	}
+
+	public static void run( String queryUrl, File database, File responseFile, int K, int rerank ) throws IOException {
+		RetrievalEngine engine = RetrievalEngine.of( HistogramDatabase.open( database ), database );
+		HistogramDatabase db = engine.getDatabase();
+		ProductQuantizer quantizer = load( database, db );
+		if( quantizer == null ) {
+			throw new IOException( "Train the codes of " + database + " first." );
+		}
+		float[] query = engine.getQueryVector( engine.getHistogram( queryUrl ) );
+		QuadraticForm form = engine.getForm();
+		long start = System.nanoTime();
+		TopK best = quantizer.search( db, query, form, K, rerank, null );
+		System.out.println( "Scanned " + quantizer.size + " codes in " + ( System.nanoTime() - start ) / 1000 + " us." );
+		engine.writeResponse( queryUrl, engine.getResults( best ), responseFile, K );
+	}
+
+	/*
+	 * Recall and latency for each rerank depth against exhaustive scans.
+	 * Queries are midpoints of two random records, so they are not in the
+	 * database.
+	 */
+	public static void measureRecall( File database, final int K, int[] reranks, int samples ) throws IOException {
+		final HistogramDatabase db = HistogramDatabase.open( database );
+		final ProductQuantizer quantizer = load( database, db );
+		if( quantizer == null ) {
+			throw new IOException( "Train the codes of " + database + " first." );
+		}
+		final QuadraticForm form = db.isProjected() ? null : SimilarityCache.get( db, database );
+		System.out.println( quantizer.subspaces + " bytes per record." );
+		Recall.measure( db, form, K, samples, "Rerank", reranks, new Recall.Search() {
+			public TopK search( float[] query, int setting, AtomicLong evaluations ) {
+				return quantizer.search( db, query, form, K, setting, evaluations );
+			}
+		});
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,541 @@
+package ImageDataBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * The similarity matrix A of the histogram quadratic distance for one colour
+ * resolution, d(h1, h2) = sqrt( (h1-h2)' A (h1-h2) ).
+ *
+ * A is symmetric, so it can be factored as A = V L V'. With the basis
+ * B = sqrt(L) V' a histogram h is projected to y = B h and the quadratic
+ * distance becomes the Euclidean distance between projections. Negative
+ * eigenvalues cannot be represented that way and are dropped, as are the
+ * smallest components when a rank is given.
+ */
+public class QuadraticForm {
+	private static final int SIDECAR_MAGIC = 0x4D534243; // "CBSM"
+	private static final int SIDECAR_VERSION = 1;
+	private static final int SIDECAR_HEADER = 64;
+
+	private final int rn, gn, bn;
+	private final int nR, nG, nB;
+	private final int bins;
+	private final float longestDistance;
+	private File sidecar;
+	private float[][] matrix;
+	/* Built on first use, then read without a lock */
+	private volatile SimilarityKernel kernel;
+	private double[] eigenvalues;
+	private float[][] components;
+
+	public QuadraticForm( int rn, int gn, int bn ) {
+		this.rn = rn;
+		this.gn = gn;
+		this.bn = bn;
+		nR = 1 << rn;
+		nG = 1 << gn;
+		nB = 1 << bn;
+		bins = nR * nG * nB;
+		longestDistance = (float) Math.sqrt( Math.pow(128/nR/256f-(256-128/nR)/256f , 2 )
+				+ Math.pow(128/nG/256f-(256-128/nG)/256f , 2 )
+				+ Math.pow(128/nB/256f-(256-128/nB)/256f , 2 ) );
+	}
+
+	/* Stores the matrix and the decomposition in sidecar as soon as they are computed. */
+	QuadraticForm( int rn, int gn, int bn, File sidecar ) {
+		this( rn, gn, bn );
+		this.sidecar = sidecar;
+	}
+
+	public synchronized float[][] getMatrix() {
+		if( matrix == null ) {
+			if( !load( false ) ) {
+				matrix = buildMatrix();
+				save();
+			}
+		}
+		return matrix;
+	}
+
+	private float[][] buildMatrix() {
+		/* Bin centres, computed once per bin instead of once per cell */
+		float[] r = new float[ bins ], g = new float[ bins ], b = new float[ bins ];
+		for( int i = 0; i < bins; i++ ) {
+			r[i] = (i / nG / nB * (256/nR) + 128 / nR) /256f;
+			g[i] = (i % ( nG * nB ) /nB * (256/nG) + 128 / nG) /256f;
+			b[i] = (i % nB * (256/nB) + 128 / nB) /256f;
+		}
+		float[][] A = new float[ bins ][ bins ];
+		for( int row = 0 ; row < bins; row++ ) {
+			for( int col = 0 ; col < bins; col++ ) {
+				double dr = r[row] - r[col], dg = g[row] - g[col], db = b[row] - b[col];
+				A[row][col] = 1 - (float) Math.sqrt( dr * dr + dg * dg + db * db ) / longestDistance;
+			}
+		}
+		return A;
+	}
+
+	/*
+	 * Sidecar layout (little endian): a 64 byte header with magic, version,
+	 * rn, gn, bn, bins, the number of positive components (-1 before the
+	 * decomposition) and the offsets of both blocks, then bins * bins matrix
+	 * floats, then bins eigenvalues as doubles and the component rows.
+	 * The file is mapped and copied into the arrays the kernels work on.
+	 */
+	private boolean load( boolean decomposition ) {
+		if( sidecar == null || !sidecar.exists() ) {
+			return false;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile( sidecar, "r" );
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0, SIDECAR_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+				if( header.getInt( 0 ) != SIDECAR_MAGIC || header.getInt( 4 ) != SIDECAR_VERSION || header.getInt( 8 ) != rn
+						|| header.getInt( 12 ) != gn || header.getInt( 16 ) != bn || header.getInt( 20 ) != bins ) {
+					return false;
+				}
+				int positive = header.getInt( 24 );
+				long eigenOffset = header.getLong( 40 );
+				if( decomposition && positive < 0 ) {
+					return false;
+				}
+				if( matrix == null ) {
+					FloatBuffer block = channel.map( FileChannel.MapMode.READ_ONLY, header.getLong( 32 ), 4L * bins * bins )
+							.order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer();
+					float[][] A = new float[ bins ][ bins ];
+					for( int i = 0; i < bins; i++ ) {
+						block.get( A[i] );
+					}
+					matrix = A;
+				}
+				if( decomposition ) {
+					ByteBuffer block = channel.map( FileChannel.MapMode.READ_ONLY, eigenOffset, 8L * bins + 4L * positive * bins )
+							.order( ByteOrder.LITTLE_ENDIAN );
+					double[] values = new double[ bins ];
+					block.asDoubleBuffer().get( values );
+					block.position( 8 * bins );
+					FloatBuffer rows = block.slice().order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer();
+					float[][] basis = new float[ positive ][ bins ];
+					for( int k = 0; k < positive; k++ ) {
+						rows.get( basis[k] );
+					}
+					eigenvalues = values;
+					components = basis;
+				}
+				return true;
+			} finally {
+				raf.close();
+			}
+		} catch( IOException e ) {
+			System.out.println( e + " Rebuilding the similarity matrix." );
+			return false;
+		}
+	}
+
+	/* Best effort, a form without a writable sidecar still works. */
+	private void save() {
+		if( sidecar == null ) {
+			return;
+		}
+		File temporary = new File( sidecar.getPath() + ".tmp" );
+		try {
+			int positive = components == null ? -1 : components.length;
+			long eigenOffset = components == null ? 0 : SIDECAR_HEADER + 4L * bins * bins;
+			RandomAccessFile raf = new RandomAccessFile( temporary, "rw" );
+			try {
+				raf.setLength( 0 );
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocate( 1 << 16 ).order( ByteOrder.LITTLE_ENDIAN );
+				buffer.putInt( SIDECAR_MAGIC ).putInt( SIDECAR_VERSION ).putInt( rn ).putInt( gn ).putInt( bn )
+						.putInt( bins ).putInt( positive ).putInt( 0 ).putLong( SIDECAR_HEADER ).putLong( eigenOffset );
+				buffer.position( SIDECAR_HEADER );
+				for( int i = 0; i < bins; i++ ) {
+					for( int j = 0; j < bins; j++ ) {
+						if( buffer.remaining() < 8 ) {
+							drain( channel, buffer );
+						}
+						buffer.putFloat( matrix[i][j] );
+					}
+				}
+				if( components != null ) {
+					for( int i = 0; i < bins; i++ ) {
+						if( buffer.remaining() < 8 ) {
+							drain( channel, buffer );
+						}
+						buffer.putDouble( eigenvalues[i] );
+					}
+					for( int k = 0; k < components.length; k++ ) {
+						for( int i = 0; i < bins; i++ ) {
+							if( buffer.remaining() < 8 ) {
+								drain( channel, buffer );
+							}
+							buffer.putFloat( components[k][i] );
+						}
+					}
+				}
+				drain( channel, buffer );
+			} finally {
+				raf.close();
+			}
+			Files.move( temporary.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch( IOException e ) {
+			System.out.println( e + " The similarity matrix is not cached." );
+			temporary.delete();
+		}
+	}
+
+	private static void drain( FileChannel channel, ByteBuffer buffer ) throws IOException {
+		buffer.flip();
+		while( buffer.hasRemaining() ) {
+			channel.write( buffer );
+		}
+		buffer.clear();
+	}
+
+	/*
+	 * The matrix as a convolution kernel, see SimilarityKernel. Distances
+	 * and products go through it, the matrix itself is only built for the
+	 * factorization or when asked for. Every distance of a scan asks for
+	 * the kernel, so only building it takes the lock.
+	 */
+	SimilarityKernel getKernel() {
+		SimilarityKernel built = kernel;
+		if( built == null ) {
+			synchronized( this ) {
+				built = kernel;
+				if( built == null ) {
+					built = new SimilarityKernel( rn, gn, bn, longestDistance );
+					kernel = built;
+				}
+			}
+		}
+		return built;
+	}
+
+	/* Exact distance sqrt(d'Ad) for d = gram1 - gram2. */
+	public float getDistance( float[] gram1, float[] gram2 ) {
+		float[] difference = Distances.getScratch( gram1.length );
+		Distances.subtract( gram1, gram2, difference );
+		return (float) Math.sqrt( Math.max( 0, getKernel().getQuadratic( difference ) ) );
+	}
+
+	/* x'Ax */
+	public double getQuadratic( float[] x ) {
+		return getKernel().getQuadratic( x );
+	}
+
+	/* out = Ax */
+	public void multiply( float[] x, double[] out ) {
+		getKernel().multiply( x, out );
+	}
+
+	/*
+	 * Returns the rank x bins basis B, rows ordered by decreasing eigenvalue.
+	 * rank <= 0 keeps every component with a positive eigenvalue.
+	 */
+	public float[][] factor( int rank ) {
+		decompose();
+		int dims = rank > 0 ? Math.min( rank, components.length ) : components.length;
+		return Arrays.copyOf( components, dims );
+	}
+
+	/* Number of positive eigenvalues, the largest rank factor can return. */
+	public int getPositiveComponentCount() {
+		decompose();
+		return components.length;
+	}
+
+	/* Share of the positive spectrum kept by the leading dims components. */
+	public float getRetainedSpectrum( int dims ) {
+		decompose();
+		double trace = 0, kept = 0;
+		for( int k = 0; k < components.length; k++ ) {
+			trace += eigenvalues[k];
+			if( k < dims ) {
+				kept += eigenvalues[k];
+			}
+		}
+		return (float) ( trace > 0 ? kept / trace : 1 );
+	}
+
+	/*
+	 * True when no eigenvalue is meaningfully negative. Only then is the
+	 * projected distance exact and a partial sum of components a lower bound.
+	 */
+	public boolean isPositiveSemidefinite() {
+		decompose();
+		return eigenvalues[ bins - 1 ] >= -1e-6 * Math.abs( eigenvalues[0] );
+	}
+
+	private synchronized void decompose() {
+		if( components != null || load( true ) ) {
+			return;
+		}
+		float[][] A = getMatrix();
+		int n = bins;
+		double[][] V = new double[ n ][ n ];
+		for( int i = 0; i < n; i++ ) {
+			for( int j = 0; j < n; j++ ) {
+				V[i][j] = A[i][j];
+			}
+		}
+		double[] d = new double[ n ];
+		double[] e = new double[ n ];
+		tridiagonalize( V, d, e );
+		/* Eigenvectors become the rows of W, so the QL rotations run over contiguous memory. */
+		double[][] W = transpose( V );
+		V = null;
+		diagonalize( W, d, e );
+
+		Integer[] order = new Integer[ n ];
+		for( int i = 0; i < n; i++ ) {
+			order[i] = i;
+		}
+		final double[] values = d;
+		Arrays.sort( order, new Comparator<Integer>() {
+			public int compare( Integer i1, Integer i2 ) {
+				return Double.compare( values[i2], values[i1] );
+			}
+		});
+
+		double[] sorted = new double[ n ];
+		int positive = 0;
+		for( int k = 0; k < n; k++ ) {
+			sorted[k] = d[ order[k] ];
+			if( sorted[k] > 0 ) {
+				positive++;
+			}
+		}
+		float[][] basis = new float[ positive ][ n ];
+		for( int k = 0; k < positive; k++ ) {
+			double scale = Math.sqrt( sorted[k] );
+			double[] vector = W[ order[k] ];
+			for( int i = 0; i < n; i++ ) {
+				basis[k][i] = (float) ( scale * vector[i] );
+			}
+		}
+		eigenvalues = sorted;
+		components = basis;
+		save();
+	}
+
+	public static void project( float[][] basis, float[] histogram, float[] out ) {
+		for( int k = 0; k < basis.length; k++ ) {
+			float[] row = basis[k];
+			float sum = 0;
+			for( int i = 0; i < row.length; i++ ) {
+				sum += row[i] * histogram[i];
+			}
+			out[k] = sum;
+		}
+	}
+
+	public static float getEuclideanDistance( float[] v1, float[] v2 ) {
+		return Distances.getEuclidean( v1, v2 );
+	}
+
+	private static double[][] transpose( double[][] V ) {
+		int n = V.length;
+		double[][] T = new double[ n ][ n ];
+		for( int i = 0; i < n; i++ ) {
+			for( int j = 0; j < n; j++ ) {
+				T[j][i] = V[i][j];
+			}
+		}
+		return T;
+	}
+
+	/* Householder reduction to tridiagonal form (tred2). */
+	private static void tridiagonalize( double[][] V, double[] d, double[] e ) {
+		int n = d.length;
+		for( int j = 0; j < n; j++ ) {
+			d[j] = V[n-1][j];
+		}
+		for( int i = n-1; i > 0; i-- ) {
+			double scale = 0, h = 0;
+			for( int k = 0; k < i; k++ ) {
+				scale += Math.abs( d[k] );
+			}
+			if( scale == 0 ) {
+				e[i] = d[i-1];
+				for( int j = 0; j < i; j++ ) {
+					d[j] = V[i-1][j];
+					V[i][j] = 0;
+					V[j][i] = 0;
+				}
+			} else {
+				for( int k = 0; k < i; k++ ) {
+					d[k] /= scale;
+					h += d[k] * d[k];
+				}
+				double f = d[i-1];
+				double g = Math.sqrt( h );
+				if( f > 0 ) {
+					g = -g;
+				}
+				e[i] = scale * g;
+				h = h - f * g;
+				d[i-1] = f - g;
+				for( int j = 0; j < i; j++ ) {
+					e[j] = 0;
+				}
+				for( int j = 0; j < i; j++ ) {
+					f = d[j];
+					V[j][i] = f;
+					g = e[j] + V[j][j] * f;
+					for( int k = j+1; k <= i-1; k++ ) {
+						g += V[k][j] * d[k];
+						e[k] += V[k][j] * f;
+					}
+					e[j] = g;
+				}
+				f = 0;
+				for( int j = 0; j < i; j++ ) {
+					e[j] /= h;
+					f += e[j] * d[j];
+				}
+				double hh = f / ( h + h );
+				for( int j = 0; j < i; j++ ) {
+					e[j] -= hh * d[j];
+				}
+				for( int j = 0; j < i; j++ ) {
+					f = d[j];
+					g = e[j];
+					for( int k = j; k <= i-1; k++ ) {
+						V[k][j] -= ( f * e[k] + g * d[k] );
+					}
+					d[j] = V[i-1][j];
+					V[i][j] = 0;
+				}
+			}
+			d[i] = h;
+		}
+		for( int i = 0; i < n-1; i++ ) {
+			V[n-1][i] = V[i][i];
+			V[i][i] = 1;
+			double h = d[i+1];
+			if( h != 0 ) {
+				for( int k = 0; k <= i; k++ ) {
+					d[k] = V[k][i+1] / h;
+				}
+				for( int j = 0; j <= i; j++ ) {
+					double g = 0;
+					for( int k = 0; k <= i; k++ ) {
+						g += V[k][i+1] * V[k][j];
+					}
+					for( int k = 0; k <= i; k++ ) {
+						V[k][j] -= g * d[k];
+					}
+				}
+			}
+			for( int k = 0; k <= i; k++ ) {
+				V[k][i+1] = 0;
+			}
+		}
+		for( int j = 0; j < n; j++ ) {
+			d[j] = V[n-1][j];
+			V[n-1][j] = 0;
+		}
+		V[n-1][n-1] = 1;
+		e[0] = 0;
+	}
+
+	/* Implicit QL iterations on the tridiagonal matrix (tql2), eigenvectors are the rows of W. */
+	private static void diagonalize( double[][] W, double[] d, double[] e ) {
+		int n = d.length;
+		for( int i = 1; i < n; i++ ) {
+			e[i-1] = e[i];
+		}
+		e[n-1] = 0;
+		double f = 0, tst1 = 0;
+		double eps = Math.pow( 2, -52 );
+		for( int l = 0; l < n; l++ ) {
+			tst1 = Math.max( tst1, Math.abs( d[l] ) + Math.abs( e[l] ) );
+			int m = l;
+			while( m < n ) {
+				if( Math.abs( e[m] ) <= eps * tst1 ) {
+					break;
+				}
+				m++;
+			}
+			if( m > l ) {
+				do {
+					double g = d[l];
+					double p = ( d[l+1] - g ) / ( 2 * e[l] );
+					double r = Math.sqrt( p * p + 1 );
+					if( p < 0 ) {
+						r = -r;
+					}
+					d[l] = e[l] / ( p + r );
+					d[l+1] = e[l] * ( p + r );
+					double dl1 = d[l+1];
+					double h = g - d[l];
+					for( int i = l+2; i < n; i++ ) {
+						d[i] -= h;
+					}
+					f = f + h;
+					p = d[m];
+					double c = 1, c2 = c, c3 = c;
+					double el1 = e[l+1];
+					double s = 0, s2 = 0;
+					for( int i = m-1; i >= l; i-- ) {
+						c3 = c2;
+						c2 = c;
+						s2 = s;
+						g = c * e[i];
+						h = c * p;
+						r = Math.sqrt( p * p + e[i] * e[i] );
+						e[i+1] = s * r;
+						s = e[i] / r;
+						c = p / r;
+						p = c * d[i] - s * g;
+						d[i+1] = h + s * ( c * g + s * d[i] );
+						double[] w0 = W[i];
+						double[] w1 = W[i+1];
+						for( int k = 0; k < n; k++ ) {
+							h = w1[k];
+							w1[k] = s * w0[k] + c * h;
+							w0[k] = c * w0[k] - s * h;
+						}
+					}
+					p = -s * s2 * c3 * el1 * e[l] / dl1;
+					e[l] = s * p;
+					d[l] = c * p;
+				} while( Math.abs( e[l] ) > eps * tst1 );
+			}
+			d[l] = d[l] + f;
+			e[l] = 0;
+		}
+	}
+
+	public int getBins() {
+		return bins;
+	}
+
+	public float getLongestDistance() {
+		return longestDistance;
+	}
+
+	public int getRn() {
+		return rn;
+	}
+
+	public int getGn() {
+		return gn;
+	}
+
+	public int getBn() {
+		return bn;
+	}
+}
@@ -0,0 +1,310 @@
+package ImageDataBase;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Keeps a RetrievalEngine per database in memory and answers queries over
+ * HTTP, so loading and kernel construction are paid once. Engines are
+ * immutable, so the handler threads share them without locking.
+ *
+ *   GET  /databases                         names, resolutions and sizes
+ *   GET  /query?url=<image url>             query by url
+ *   POST /query                             query by the image bytes in the body
+ *   GET  /query?record=<index>              query by an entry of the database
+ *
+ * Query parameters: db (file name, default the first database), k (default
+ * 20), format (json or html, default json), components (filter and refine,
+ * see DatabaseScan) and rn, gn, bn to query at a coarser resolution than
+ * the database is stored in.
+ *
+ * A segmented database (see SegmentedDatabase) is served from the snapshot
+ * of its segments current when a query starts, and the manifest is reread
+ * every REFRESH_INTERVAL, so images ingested by another process show up
+ * without a restart and without queries waiting for the ingestion. These
+ * are queried by url or image at their own resolution.
+ */
+public class QueryServer {
+	private static final int DEFAULT_K = 20;
+	private static final long REFRESH_INTERVAL = 1000;
+	/* Largest image accepted by POST, larger ones are answered with 413 */
+	private static final int MAX_UPLOAD = 32 << 20;
+
+	private final Map<String, RetrievalEngine> databases = new LinkedHashMap<String, RetrievalEngine>();
+	private final Map<String, SegmentedDatabase> segmented = new LinkedHashMap<String, SegmentedDatabase>();
+	private final ForkJoinPool pool;
+	private final ScheduledExecutorService refresher;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public QueryServer( File[] databaseFiles, int workers ) throws IOException {
+		for( File file : databaseFiles ) {
+			if( SegmentedDatabase.isSegmented( file ) ) {
+				SegmentedDatabase db = SegmentedDatabase.open( file );
+				SimilarityCache.get( db.getRn(), db.getGn(), db.getBn(), file ).getKernel();
+				segmented.put( file.getName(), db );
+			} else {
+				databases.put( file.getName(), RetrievalEngine.open( file ).prepare() );
+			}
+			System.out.println( "Loaded " + file.getName() );
+		}
+		pool = new ForkJoinPool( Math.max( 1, workers ) );
+		refresher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, "refresh" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				for( SegmentedDatabase db : segmented.values() ) {
+					try {
+						db.refresh();
+					} catch( IOException e ) {
+						System.out.println( e );
+					}
+				}
+			}
+		}, REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.MILLISECONDS );
+	}
+
+	public void start( int port ) throws IOException {
+		server = HttpServer.create( new InetSocketAddress( "localhost", port ), 0 );
+		server.createContext( "/query", new HttpHandler() {
+			public void handle( HttpExchange exchange ) throws IOException {
+				handleQuery( exchange );
+			}
+		});
+		server.createContext( "/databases", new HttpHandler() {
+			public void handle( HttpExchange exchange ) throws IOException {
+				handleDatabases( exchange );
+			}
+		});
+		executor = Executors.newFixedThreadPool( pool.getParallelism() );
+		server.setExecutor( executor );
+		server.start();
+		System.out.println( "Serving on http://localhost:" + server.getAddress().getPort() + "/" );
+	}
+
+	public void stop() {
+		server.stop( 0 );
+		executor.shutdown();
+		pool.shutdown();
+		refresher.shutdown();
+	}
+
+	private void handleDatabases( HttpExchange exchange ) throws IOException {
+		StringBuilder builder = new StringBuilder( "[" );
+		for( Map.Entry<String, RetrievalEngine> entry : databases.entrySet() ) {
+			HistogramDatabase db = entry.getValue().getDatabase();
+			if( builder.length() > 1 ) {
+				builder.append( ',' );
+			}
+			builder.append( "{\"name\":" ).append( Json.quote( entry.getKey() ) )
+					.append( ",\"rn\":" ).append( db.getRn() )
+					.append( ",\"gn\":" ).append( db.getGn() )
+					.append( ",\"bn\":" ).append( db.getBn() )
+					.append( ",\"records\":" ).append( db.size() )
+					.append( ",\"projected\":" ).append( db.isProjected() ).append( '}' );
+		}
+		for( Map.Entry<String, SegmentedDatabase> entry : segmented.entrySet() ) {
+			SegmentedDatabase db = entry.getValue();
+			SegmentedDatabase.Snapshot snapshot = db.getSnapshot();
+			if( builder.length() > 1 ) {
+				builder.append( ',' );
+			}
+			builder.append( "{\"name\":" ).append( Json.quote( entry.getKey() ) )
+					.append( ",\"rn\":" ).append( db.getRn() )
+					.append( ",\"gn\":" ).append( db.getGn() )
+					.append( ",\"bn\":" ).append( db.getBn() )
+					.append( ",\"records\":" ).append( snapshot.size() )
+					.append( ",\"segments\":" ).append( snapshot.getSegments() ).append( '}' );
+		}
+		send( exchange, 200, "application/json", builder.append( ']' ).toString() );
+	}
+
+	private void handleQuery( HttpExchange exchange ) throws IOException {
+		try {
+			Map<String, String> parameters = parse( exchange.getRequestURI().getRawQuery() );
+			String name = parameters.get( "db" );
+			if( name == null ) {
+				name = databases.isEmpty() ? segmented.keySet().iterator().next() : databases.keySet().iterator().next();
+			}
+			if( segmented.containsKey( name ) ) {
+				handleSegmentedQuery( exchange, parameters, segmented.get( name ) );
+				return;
+			}
+			RetrievalEngine engine = databases.get( name );
+			if( engine == null ) {
+				send( exchange, 404, "application/json", "{\"error\":" + Json.quote( "Unknown database " + name ) + "}" );
+				return;
+			}
+			if( parameters.containsKey( "rn" ) ) {
+				engine = engine.at( Integer.valueOf( parameters.get( "rn" ) ), Integer.valueOf( parameters.get( "gn" ) ),
+						Integer.valueOf( parameters.get( "bn" ) ) );
+			}
+			HistogramDatabase db = engine.getDatabase();
+			int K = getK( parameters, db.size() );
+			int components = parameters.containsKey( "components" ) ? Integer.valueOf( parameters.get( "components" ) ) : 0;
+
+			String queryUrl;
+			float[] queryVector;
+			if( parameters.containsKey( "record" ) ) {
+				/* Stored vectors are already in the space the database is scanned in */
+				int record = Integer.valueOf( parameters.get( "record" ) );
+				if( record < 0 || record >= db.size() ) {
+					throw new IllegalArgumentException( "No record " + record );
+				}
+				queryVector = new float[ db.getDimensions() ];
+				db.read( record, queryVector );
+				queryUrl = db.getUrls( record ).split(" ")[1];
+			} else {
+				String[] url = new String[1];
+				queryVector = engine.getQueryVector( engine.getHistogram( readImage( exchange, parameters, url ) ) );
+				queryUrl = url[0];
+			}
+
+			TopK best = engine.query( queryVector, K, pool, components, new AtomicLong(), null );
+			sendResults( exchange, parameters, queryUrl, engine.getResults( best ), K, engine.getRn(), engine.getGn(), engine.getBn() );
+		} catch( UploadTooLargeException e ) {
+			send( exchange, 413, "application/json", "{\"error\":" + Json.quote( e.getMessage() ) + "}" );
+		} catch( IllegalArgumentException e ) {
+			send( exchange, 400, "application/json", "{\"error\":" + Json.quote( String.valueOf( e.getMessage() ) ) + "}" );
+		} catch( IOException e ) {
+			send( exchange, 400, "application/json", "{\"error\":" + Json.quote( e.toString() ) + "}" );
+		} catch( RuntimeException e ) {
+			send( exchange, 500, "application/json", "{\"error\":" + Json.quote( e.toString() ) + "}" );
+		}
+	}
+
+	/* Over the snapshot of the segments current now, ingestion going on meanwhile does not hold it up */
+	private void handleSegmentedQuery( HttpExchange exchange, Map<String, String> parameters, SegmentedDatabase db ) throws IOException {
+		if( parameters.containsKey( "record" ) || parameters.containsKey( "rn" ) ) {
+			throw new IllegalArgumentException( "Segmented databases are queried by url or image at their own resolution." );
+		}
+		SegmentedDatabase.Snapshot snapshot = db.getSnapshot();
+		int K = getK( parameters, snapshot.size() );
+		int components = parameters.containsKey( "components" ) ? Integer.valueOf( parameters.get( "components" ) ) : 0;
+		String[] url = new String[1];
+		float[] queryGram = RetrievalEngine.getHistogram( readImage( exchange, parameters, url ), db.getRn(), db.getGn(), db.getBn() );
+		ArrayList<Node> resultList = snapshot.query( queryGram, K, pool, components );
+		sendResults( exchange, parameters, url[0], resultList, K, db.getRn(), db.getGn(), db.getBn() );
+	}
+
+	/* The k parameter, no more than the records there are since the results are allocated for K up front. */
+	private static int getK( Map<String, String> parameters, int records ) {
+		int K = parameters.containsKey( "k" ) ? Integer.valueOf( parameters.get( "k" ) ) : DEFAULT_K;
+		if( K <= 0 ) {
+			throw new IllegalArgumentException( "k must be positive." );
+		}
+		return Math.min( K, Math.max( 1, records ) );
+	}
+
+	/* The posted image or the one at the url parameter, queryUrl[0] is set to its url. */
+	private static BufferedImage readImage( HttpExchange exchange, Map<String, String> parameters, String[] queryUrl ) throws IOException {
+		BufferedImage src;
+		if( exchange.getRequestMethod().equals( "POST" ) ) {
+			String length = exchange.getRequestHeaders().getFirst( "Content-Length" );
+			if( length != null && Long.valueOf( length.trim() ) > MAX_UPLOAD ) {
+				throw new UploadTooLargeException();
+			}
+			byte[] bytes = readAll( exchange.getRequestBody() );
+			src = ImageDecoder.decode( bytes );
+			queryUrl[0] = "data:image;base64," + Base64.getEncoder().encodeToString( bytes );
+		} else if( parameters.containsKey( "url" ) ) {
+			queryUrl[0] = parameters.get( "url" );
+			src = ImageCache.getDefault().read( queryUrl[0] );
+		} else {
+			throw new IllegalArgumentException( "Give a url, a record or post an image." );
+		}
+		if( src == null ) {
+			throw new IllegalArgumentException( "The image could not be decoded." );
+		}
+		return src;
+	}
+
+	private static void sendResults( HttpExchange exchange, Map<String, String> parameters, String queryUrl, ArrayList<Node> resultList, int K,
+			int rn, int gn, int bn ) throws IOException {
+		if( "html".equals( parameters.get( "format" ) ) ) {
+			StringWriter writer = new StringWriter();
+			RetrievalEngine.writeResponse( queryUrl, resultList, writer, K, rn, gn, bn );
+			send( exchange, 200, "text/html; charset=utf-8", writer.toString() );
+		} else {
+			if( queryUrl.startsWith( "data:" ) ) {
+				queryUrl = "upload";
+			}
+			send( exchange, 200, "application/json", Json.result( queryUrl, resultList ) );
+		}
+	}
+
+	private static Map<String, String> parse( String rawQuery ) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if( rawQuery == null ) {
+			return parameters;
+		}
+		for( String pair : rawQuery.split( "&" ) ) {
+			int equals = pair.indexOf( '=' );
+			if( equals > 0 ) {
+				parameters.put( URLDecoder.decode( pair.substring( 0, equals ), "UTF-8" ),
+						URLDecoder.decode( pair.substring( equals + 1 ), "UTF-8" ) );
+			}
+		}
+		return parameters;
+	}
+
+	private static class UploadTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		UploadTooLargeException() {
+			super( "Images of more than " + ( MAX_UPLOAD >> 20 ) + " MB are not accepted." );
+		}
+	}
+
+	/* At most MAX_UPLOAD bytes, a longer body is not read any further. */
+	private static byte[] readAll( InputStream in ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[ 1 << 16 ];
+		int read;
+		while( ( read = in.read( buffer ) ) > 0 ) {
+			if( out.size() + read > MAX_UPLOAD ) {
+				throw new UploadTooLargeException();
+			}
+			out.write( buffer, 0, read );
+		}
+		return out.toByteArray();
+	}
+
+	private static void send( HttpExchange exchange, int status, String contentType, String body ) throws IOException {
+		byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+		exchange.getResponseHeaders().set( "Content-Type", contentType );
+		exchange.sendResponseHeaders( status, bytes.length );
+		OutputStream out = exchange.getResponseBody();
+		out.write( bytes );
+		out.close();
+	}
+}
@@ -0,0 +1,64 @@
+package ImageDataBase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Recall and latency of an approximate search against exhaustive scans,
+ * for the recall commands of the graph index and the product codes.
+ * Queries are midpoints of two random records, so they are not in the
+ * database, and every setting of the search is run on the same queries.
+ */
+class Recall {
+	/* The K nearest records to query at a setting such as efSearch, adding the distances computed to evaluations. */
+	interface Search {
+		TopK search( float[] query, int setting, AtomicLong evaluations ) throws IOException;
+	}
+
+	static void measure( HistogramDatabase db, QuadraticForm form, int K, int samples, String name, int[] settings, Search search ) throws IOException {
+		Random random = new Random( 1 );
+		float[][] queries = new float[ samples ][ db.getDimensions() ];
+		float[] other = new float[ db.getDimensions() ];
+		ArrayList<Set<Integer>> expected = new ArrayList<Set<Integer>>();
+		long exhaustiveTime = 0;
+		for( int q = 0; q < samples; q++ ) {
+			db.read( random.nextInt( db.size() ), queries[q] );
+			db.read( random.nextInt( db.size() ), other );
+			for( int i = 0; i < other.length; i++ ) {
+				queries[q][i] = ( queries[q][i] + other[i] ) / 2;
+			}
+			long start = System.nanoTime();
+			TopK exact = DatabaseScan.scan( db, queries[q], form, K, null, 0, null );
+			exhaustiveTime += System.nanoTime() - start;
+			Set<Integer> records = new HashSet<Integer>();
+			for( int record : exact.sortedRecords() ) {
+				records.add( record );
+			}
+			expected.add( records );
+		}
+		System.out.println( "Exhaustive: " + exhaustiveTime / 1000.0 / Math.max( 1, samples ) + " us and " + db.size() + " distances per query." );
+		for( int setting : settings ) {
+			double recall = 0;
+			long time = 0;
+			AtomicLong evaluations = new AtomicLong();
+			for( int q = 0; q < samples; q++ ) {
+				long start = System.nanoTime();
+				TopK found = search.search( queries[q], setting, evaluations );
+				time += System.nanoTime() - start;
+				int hits = 0;
+				for( int record : found.sortedRecords() ) {
+					if( expected.get( q ).contains( record ) ) {
+						hits++;
+					}
+				}
+				recall += expected.get( q ).isEmpty() ? 1 : (double) hits / expected.get( q ).size();
+			}
+			System.out.println( name + " " + setting + ": recall@" + K + " " + recall / Math.max( 1, samples ) + ", "
+					+ time / 1000.0 / Math.max( 1, samples ) + " us and " + evaluations.get() / Math.max( 1, samples ) + " distances per query." );
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package ImageDataBase;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * One opened database with everything its queries need: the resolution,
+ * the similarity form or the projection, and the vantage point tree when
+ * there is one. An engine does not change once it is opened, so its query
+ * and histogram methods can be called from many threads at once, and
+ * engines at different resolutions can serve side by side in one process.
+ * The command line (ImageDatabase) and the http server (QueryServer) are
+ * built on it.
+ *
+ * Coarser views of the database are opened on first use and kept, see at.
+ */
+public final class RetrievalEngine {
+	private final HistogramDatabase db;
+	private final File database;
+	private final int rn, gn, bn;
+	/* null when the database is projected */
+	private final QuadraticForm form;
+	/* null without an index, or at a coarser resolution than the stored one */
+	private final VpTree tree;
+	private final Map<String, RetrievalEngine> resolutions = new HashMap<String, RetrievalEngine>();
+
+	private RetrievalEngine( HistogramDatabase db, File database, VpTree tree ) {
+		this.db = db;
+		this.database = database;
+		this.tree = tree;
+		rn = db.getRn();
+		gn = db.getGn();
+		bn = db.getBn();
+		form = db.isProjected() ? null : SimilarityCache.get( db, database );
+	}
+
+	public static RetrievalEngine open( File database ) throws IOException {
+		HistogramDatabase db = HistogramDatabase.open( database );
+		return new RetrievalEngine( db, database, VpTree.load( database, db ) );
+	}
+
+	/* At a resolution no finer than the stored one, the database bins are summed into it. Negative keeps the stored one. */
+	public static RetrievalEngine open( File database, int rn, int gn, int bn ) throws IOException {
+		return rn < 0 ? open( database ) : of( HistogramDatabase.open( database, rn, gn, bn ), database );
+	}
+
+	/* For a database opened elsewhere, which may be a coarser view of the one in database. */
+	public static RetrievalEngine of( HistogramDatabase db, File database ) {
+		return new RetrievalEngine( db, database, null );
+	}
+
+	/* The engine at a coarser resolution, built once. */
+	public synchronized RetrievalEngine at( int rn, int gn, int bn ) throws IOException {
+		if( rn == this.rn && gn == this.gn && bn == this.bn ) {
+			return this;
+		}
+		String key = rn + "_" + gn + "_" + bn;
+		RetrievalEngine engine = resolutions.get( key );
+		if( engine == null ) {
+			engine = new RetrievalEngine( db.coarsen( rn, gn, bn, database ), database, null );
+			resolutions.put( key, engine );
+		}
+		return engine;
+	}
+
+	/* Builds the similarity matrix kernel now rather than on the first query. */
+	public RetrievalEngine prepare() {
+		if( form != null ) {
+			form.getKernel();
+		}
+		return this;
+	}
+
+	public float[] getHistogram( String url ) throws IOException {
+		return getHistogram( ImageCache.getDefault().read( url ) );
+	}
+
+	public float[] getHistogram( BufferedImage src ) {
+		return getHistogram( src, rn, gn, bn );
+	}
+
+	/* A histogram in the space the database is scanned in, projected when the database is. */
+	public float[] getQueryVector( float[] histogram ) {
+		if( !db.isProjected() ) {
+			return histogram;
+		}
+		float[] vector = new float[ db.getDimensions() ];
+		QuadraticForm.project( db.getProjection(), histogram, vector );
+		return vector;
+	}
+
+	/*
+	 * The K nearest records to a query vector. Goes through the vantage point
+	 * tree when there is one and no filter components are asked for, adding
+	 * the distances computed to evaluations, otherwise scans with pool (null
+	 * scans on the calling thread) and adds the records pruned.
+	 */
+	public TopK query( float[] queryVector, int K, ForkJoinPool pool, int components, AtomicLong evaluations, AtomicLong pruned ) {
+		if( tree != null && components == 0 ) {
+			return tree.nearest( db, queryVector, form, K, evaluations );
+		}
+		return DatabaseScan.scan( db, queryVector, form, K, pool, components, pruned );
+	}
+
+	/* Every record within radius of a query vector, through the vantage point tree. */
+	public ArrayList<Node> range( float[] queryVector, float radius, AtomicLong evaluations ) throws IOException {
+		if( tree == null ) {
+			throw new IOException( "Build an index of " + database + " first." );
+		}
+		return tree.range( db, queryVector, form, radius, evaluations );
+	}
+
+	public float getDistance( float[] vector1, float[] vector2 ) {
+		return form == null ? QuadraticForm.getEuclideanDistance( vector1, vector2 ) : form.getDistance( vector1, vector2 );
+	}
+
+	public ArrayList<Node> getResults( TopK best ) {
+		ArrayList<Node> resultList = new ArrayList<Node>();
+		int[] records = best.sortedRecords();
+		float[] distances = best.sortedDistances();
+		for( int i = 0; i < records.length; i++ ) {
+			Node newNode = new Node();
+			newNode.distance = distances[i];
+			newNode.urls = db.getUrls( records[i] );
+			resultList.add(newNode);
+		}
+		return resultList;
+	}
+
+	public void writeResponse( String queryUrl, ArrayList<Node> resultList, File responseFile, int K ) throws IOException {
+		FileWriter fileWriter = new FileWriter( responseFile );
+		try {
+			writeResponse( queryUrl, resultList, fileWriter, K, rn, gn, bn );
+		} finally {
+			fileWriter.close();
+		}
+	}
+
+	public HistogramDatabase getDatabase() {
+		return db;
+	}
+
+	public File getFile() {
+		return database;
+	}
+
+	/* null when the database is projected */
+	public QuadraticForm getForm() {
+		return form;
+	}
+
+	public boolean hasIndex() {
+		return tree != null;
+	}
+
+	public int getRn() {
+		return rn;
+	}
+
+	public int getGn() {
+		return gn;
+	}
+
+	public int getBn() {
+		return bn;
+	}
+	
+	/* Urls are escaped, they may come from a request of the server. */
+	public static void writeResponse( String queryUrl, ArrayList<Node> resultList , Writer fileWriter, int K, int rn, int gn, int bn ) throws IOException {
+		queryUrl = escape( queryUrl );
+		fileWriter.write( "<!DOCTYPE html><html><head><title>Pictures</title></head><body>" );
+		fileWriter.write( "<div class=\"img\"> Query Image:<br> <a href=\""
+								+ queryUrl
+							    + "\"><img style=\"max-width:300px; max-height:300px;\" src=\""
+							    + queryUrl
+							    +"\"></a></div>"
+						);
+		fileWriter.write( "<div class=\"img\" style=\" display: inline-block; margin: 5px;\">"
+							+ "Resolution: Rn: "+rn+" Gn: " + gn+ " Bn: "+ bn+"  </div><br>"	);
+		int count = 0 ;
+		while( count < K && count < resultList.size() ) {
+			Node temp = resultList.get(count);
+			String[] url = escape( temp.urls ).split(" ");
+			fileWriter.write( "<div style=\"display: inline-block; margin: 5px;padding:0;\" class=\"img\">"
+					+ "				<a style=\" display: block;height: 10px;width: 10px;background-color: #aaa; \"  href=\"" 
+								+ url[0]
+								+ "\" class=\"flickr\"></a> <p>distance: "+temp.distance +" </p><a href=\""
+								+ url[2]
+							    + "\"><img  src=\""
+							    + url[1]
+							    +"\"></a> </div>"
+						);
+			count++;
+		}
+		
+		fileWriter.write( "</body></html>" );
+	}
+	
+	
+	private static String escape( String value ) {
+		StringBuilder builder = new StringBuilder( value.length() );
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			switch( c ) {
+			case '&':
+				builder.append( "&amp;" );
+				break;
+			case '<':
+				builder.append( "&lt;" );
+				break;
+			case '>':
+				builder.append( "&gt;" );
+				break;
+			case '"':
+				builder.append( "&quot;" );
+				break;
+			case '\'':
+				builder.append( "&#39;" );
+				break;
+			default:
+				builder.append( c );
+			}
+		}
+		return builder.toString();
+	}
+	
+	/* The normalized colour histogram of an image at a resolution */
+	public static float[] getHistogram( BufferedImage src, int rn, int gn, int bn ) {
+		int length = 1 << ( rn + gn + bn );
+		int[] counts = new int[ length ];
+		if( !countPackedPixels( src, rn, gn, bn, counts ) && !countInterleavedPixels( src, rn, gn, bn, counts ) ) {
+			countPixels( src, rn, gn, bn, counts );
+		}
+		
+		// Normalize histogram
+		float numberOfPixel = src.getHeight() * src.getWidth();
+		float[] histogram = new float[ length ];
+		for( int i=0; i<histogram.length; i++ ) {
+			histogram[i] = counts[i] / numberOfPixel;
+		}
+		return histogram;
+	}
+	
+	/*
+	 * Bin counts are powers of two, so the bin of a channel value is its top
+	 * n bits: index = r >> (8-rn) << (gn+bn) | g >> (8-gn) << bn | b >> (8-bn)
+	 */
+	private static void countPixels( BufferedImage src, int rn, int gn, int bn, int[] counts ) {
+		int width = src.getWidth();
+		int[] row = new int[ width ];
+		for( int y = 0; y < src.getHeight(); y++ ) {
+			src.getRGB( 0, y, width, 1, row, 0, width );
+			for( int x = 0; x < width; x++ ) {
+				int rgb = row[x];
+				counts[ ( ( rgb >> 16 & 0xff ) >> ( 8 - rn ) << ( gn + bn ) )
+						| ( ( rgb >> 8 & 0xff ) >> ( 8 - gn ) << bn )
+						| ( ( rgb & 0xff ) >> ( 8 - bn ) ) ]++;
+			}
+		}
+	}
+	
+	/* Int packed rasters such as TYPE_INT_RGB, TYPE_INT_ARGB and TYPE_INT_BGR, read straight from the DataBuffer */
+	private static boolean countPackedPixels( BufferedImage src, int rn, int gn, int bn, int[] counts ) {
+		WritableRaster raster = src.getRaster();
+		if( !( src.getColorModel() instanceof DirectColorModel ) || !( raster.getDataBuffer() instanceof DataBufferInt )
+				|| !( raster.getSampleModel() instanceof SinglePixelPackedSampleModel ) ) {
+			return false;
+		}
+		DirectColorModel cm = (DirectColorModel) src.getColorModel();
+		if( !cm.getColorSpace().isCS_sRGB() || cm.isAlphaPremultiplied()
+				|| Integer.bitCount( cm.getRedMask() ) != 8 || Integer.bitCount( cm.getGreenMask() ) != 8 || Integer.bitCount( cm.getBlueMask() ) != 8 ) {
+			return false;
+		}
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+		int[] data = buffer.getData();
+		int scanline = sm.getScanlineStride();
+		int start = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline - raster.getSampleModelTranslateX();
+		
+		/* Shift each channel so that its top bits land at the bit position of the bin index */
+		int redShift = Integer.numberOfTrailingZeros( cm.getRedMask() ) + 8 - rn;
+		int greenShift = Integer.numberOfTrailingZeros( cm.getGreenMask() ) + 8 - gn;
+		int blueShift = Integer.numberOfTrailingZeros( cm.getBlueMask() ) + 8 - bn;
+		int redBits = ( 1 << rn ) - 1, greenBits = ( 1 << gn ) - 1, blueBits = ( 1 << bn ) - 1;
+		int width = src.getWidth();
+		for( int y = 0; y < src.getHeight(); y++ ) {
+			int offset = start + y * scanline;
+			for( int x = 0; x < width; x++ ) {
+				int pixel = data[ offset + x ];
+				counts[ ( ( pixel >>> redShift & redBits ) << ( gn + bn ) )
+						| ( ( pixel >>> greenShift & greenBits ) << bn )
+						| ( pixel >>> blueShift & blueBits ) ]++;
+			}
+		}
+		return true;
+	}
+	
+	/* Byte interleaved rasters such as TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR, read straight from the DataBuffer */
+	private static boolean countInterleavedPixels( BufferedImage src, int rn, int gn, int bn, int[] counts ) {
+		WritableRaster raster = src.getRaster();
+		if( !( src.getColorModel() instanceof ComponentColorModel ) || !( raster.getDataBuffer() instanceof DataBufferByte )
+				|| !( raster.getSampleModel() instanceof PixelInterleavedSampleModel ) ) {
+			return false;
+		}
+		ComponentColorModel cm = (ComponentColorModel) src.getColorModel();
+		if( !cm.getColorSpace().isCS_sRGB() || cm.isAlphaPremultiplied() || cm.getNumColorComponents() != 3
+				|| cm.getComponentSize( 0 ) != 8 || cm.getComponentSize( 1 ) != 8 || cm.getComponentSize( 2 ) != 8 ) {
+			return false;
+		}
+		PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+		DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+		byte[] data = buffer.getData();
+		int[] bandOffsets = sm.getBandOffsets();
+		int pixelStride = sm.getPixelStride();
+		int scanline = sm.getScanlineStride();
+		int start = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline - raster.getSampleModelTranslateX() * pixelStride;
+		
+		int redOffset = bandOffsets[0], greenOffset = bandOffsets[1], blueOffset = bandOffsets[2];
+		int width = src.getWidth();
+		for( int y = 0; y < src.getHeight(); y++ ) {
+			int offset = start + y * scanline;
+			for( int x = 0; x < width; x++, offset += pixelStride ) {
+				counts[ ( ( data[ offset + redOffset ] & 0xff ) >> ( 8 - rn ) << ( gn + bn ) )
+						| ( ( data[ offset + greenOffset ] & 0xff ) >> ( 8 - gn ) << bn )
+						| ( ( data[ offset + blueOffset ] & 0xff ) >> ( 8 - bn ) ) ]++;
+			}
+		}
+		return true;
+	}
+}
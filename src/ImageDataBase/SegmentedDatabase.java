@@ -0,0 +1,516 @@
+package ImageDataBase;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A database kept as a directory of immutable segments, so images can be
+ * added while queries are being answered.
+ *
+ *   manifest          "rn gn bn", the generation and the segment files,
+ *                     one per line
+ *   segment-*.cbir    binary databases, never changed once listed
+ *
+ * A Snapshot is the segments of one manifest, opened once. Readers take the
+ * current snapshot without a lock and keep using it for as long as they
+ * like. Writers write complete segment files and force them to disk first,
+ * then replace the manifest atomically under a lock file that only writers
+ * take, so readers never wait for them and never see part of a change.
+ * Other processes pick changes up with refresh, which rereads the manifest.
+ *
+ * The first byte of the lock file is taken to publish a manifest, the second
+ * is shared by the writers while they have segments out that may not be
+ * listed yet. Before ingesting or merging, a writer that gets both alone
+ * removes the segment files the manifest does not list, left by a writer
+ * that stopped before publishing or a merge that stopped before deleting
+ * what it merged. Opening only reads.
+ *
+ * Ingestion writes a segment every SEGMENT_RECORDS images, and merges run
+ * on a low priority background thread meanwhile: once there are at least
+ * MERGE_FACTOR segments below MERGE_RECORDS records they are rewritten as
+ * one, without their deleted records. Merged segments are deleted when the
+ * new manifest is in place, snapshots still using them keep their mapping.
+ */
+public class SegmentedDatabase {
+	public static final String MANIFEST = "manifest";
+	private static final String LOCK = "lock";
+	private static final int SEGMENT_RECORDS = 10000;
+	private static final int MERGE_RECORDS = 100000;
+	private static final int MERGE_FACTOR = 4;
+
+	private final File directory;
+	private final int rn, gn, bn;
+	private volatile Snapshot snapshot;
+	private final Object mergeLock = new Object();
+	/* The lock file excludes other processes, this the threads of ours */
+	private final Object publishLock = new Object();
+	/* Our shared lock on the second byte, held while writers > 0 */
+	private RandomAccessFile writingFile;
+	private FileLock writing;
+	private int writers;
+
+	/* The segments of one manifest */
+	public static final class Snapshot {
+		private final long generation;
+		private final String[] names;
+		private final RetrievalEngine[] engines;
+		private final int size;
+
+		private Snapshot( long generation, String[] names, RetrievalEngine[] engines ) {
+			this.generation = generation;
+			this.names = names;
+			this.engines = engines;
+			int size = 0;
+			for( RetrievalEngine engine : engines ) {
+				size += engine.getDatabase().size();
+			}
+			this.size = size;
+		}
+
+		/* The K nearest images over every segment, see RetrievalEngine.query. */
+		public ArrayList<Node> query( float[] histogram, int K, ForkJoinPool pool, int components ) {
+			ArrayList<Node> resultList = new ArrayList<Node>();
+			for( RetrievalEngine engine : engines ) {
+				TopK best = engine.query( engine.getQueryVector( histogram ), K, pool, components, new AtomicLong(), null );
+				resultList.addAll( engine.getResults( best ) );
+			}
+			Collections.sort( resultList, new Comparator<Node>() {
+				public int compare( Node a, Node b ) {
+					return Float.compare( a.distance, b.distance );
+				}
+			});
+			return resultList.size() > K ? new ArrayList<Node>( resultList.subList( 0, K ) ) : resultList;
+		}
+
+		public long getGeneration() {
+			return generation;
+		}
+
+		public int getSegments() {
+			return engines.length;
+		}
+
+		/* Records in all segments, deleted ones included */
+		public int size() {
+			return size;
+		}
+	}
+
+	private SegmentedDatabase( File directory, int rn, int gn, int bn ) {
+		this.directory = directory;
+		this.rn = rn;
+		this.gn = gn;
+		this.bn = bn;
+	}
+
+	public static boolean isSegmented( File file ) {
+		return new File( file, MANIFEST ).isFile();
+	}
+
+	public static SegmentedDatabase open( File directory ) throws IOException {
+		List<String> manifest = readManifest( directory );
+		String[] resolution = manifest.get( 0 ).trim().split(" ");
+		SegmentedDatabase db = new SegmentedDatabase( directory, Integer.valueOf( resolution[0] ),
+				Integer.valueOf( resolution[1] ), Integer.valueOf( resolution[2] ) );
+		db.refresh();
+		return db;
+	}
+
+	/*
+	 * Deletes the segment files the manifest does not list, unless a writer
+	 * may still publish them. Skipped, not waited for, when another writer
+	 * holds either byte of the lock file.
+	 */
+	private void removeUnlisted() throws IOException {
+		RandomAccessFile lockFile = new RandomAccessFile( new File( directory, LOCK ), "rw" );
+		FileLock lock = null;
+		FileLock idle = null;
+		try {
+			lock = lockFile.getChannel().tryLock( 0, 1, false );
+			idle = lock == null ? null : lockFile.getChannel().tryLock( 1, 1, false );
+			if( idle == null ) {
+				return;
+			}
+			List<String> manifest = readManifest( directory );
+			HashSet<String> listed = new HashSet<String>( manifest.subList( 2, manifest.size() ) );
+			for( File file : directory.listFiles() ) {
+				/* A segment and its tombstones */
+				String name = file.getName();
+				int end = name.indexOf( ".cbir" );
+				if( name.startsWith( "segment-" ) && end >= 0 && !listed.contains( name.substring( 0, end + 5 ) ) ) {
+					file.delete();
+				}
+			}
+		} catch( OverlappingFileLockException e ) {
+			/* A writer of this process holds it */
+			return;
+		} finally {
+			if( idle != null ) {
+				idle.release();
+			}
+			if( lock != null ) {
+				lock.release();
+			}
+			lockFile.close();
+		}
+	}
+
+	/* Keeps removeUnlisted from taking our unlisted segments until the matching endWriting. */
+	private synchronized void beginWriting() throws IOException {
+		if( writers == 0 ) {
+			writingFile = new RandomAccessFile( new File( directory, LOCK ), "rw" );
+			try {
+				writing = writingFile.getChannel().lock( 1, 1, true );
+			} catch( IOException e ) {
+				writingFile.close();
+				throw e;
+			}
+		}
+		writers++;
+	}
+
+	private synchronized void endWriting() throws IOException {
+		if( --writers == 0 ) {
+			writing.release();
+			writingFile.close();
+		}
+	}
+
+	/* An empty database in directory, or the one already there when it has the same resolution. */
+	public static SegmentedDatabase create( File directory, int rn, int gn, int bn ) throws IOException {
+		if( !isSegmented( directory ) ) {
+			if( !( directory.isDirectory() || directory.mkdirs() ) ) {
+				throw new IOException( "Cannot create " + directory );
+			}
+			writeManifest( directory, rn, gn, bn, 0, new ArrayList<String>() );
+		}
+		SegmentedDatabase db = open( directory );
+		if( db.rn != rn || db.gn != gn || db.bn != bn ) {
+			throw new IOException( directory + " holds " + db.rn + " " + db.gn + " " + db.bn + " histograms." );
+		}
+		return db;
+	}
+
+	/* The current snapshot, never blocks. */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/*
+	 * Rereads the manifest and opens a new snapshot when its generation
+	 * changed, segments already open are shared with the old one. A merge may
+	 * delete a segment between reading the manifest and opening it, then the
+	 * newer manifest is read.
+	 */
+	public Snapshot refresh() throws IOException {
+		for( int attempt = 0; ; attempt++ ) {
+			List<String> manifest = readManifest( directory );
+			long generation = Long.valueOf( manifest.get( 1 ).trim() );
+			Snapshot current = snapshot;
+			if( current != null && current.generation == generation ) {
+				return current;
+			}
+			Map<String, RetrievalEngine> opened = new HashMap<String, RetrievalEngine>();
+			if( current != null ) {
+				for( int i = 0; i < current.names.length; i++ ) {
+					opened.put( current.names[i], current.engines[i] );
+				}
+			}
+			List<String> names = manifest.subList( 2, manifest.size() );
+			RetrievalEngine[] engines = new RetrievalEngine[ names.size() ];
+			try {
+				for( int i = 0; i < engines.length; i++ ) {
+					engines[i] = opened.get( names.get( i ) );
+					if( engines[i] == null ) {
+						engines[i] = RetrievalEngine.open( new File( directory, names.get( i ) ) );
+					}
+				}
+			} catch( FileNotFoundException e ) {
+				if( attempt < 3 ) {
+					continue;
+				}
+				throw e;
+			}
+			Snapshot next = new Snapshot( generation, names.toArray( new String[ names.size() ] ), engines );
+			synchronized( this ) {
+				if( snapshot == null || snapshot.generation < generation ) {
+					snapshot = next;
+				}
+				return snapshot;
+			}
+		}
+	}
+
+	/* Adds the images of a url list, publishing a segment every SEGMENT_RECORDS of them. */
+	public void ingest( File input, IngestionPipeline pipeline ) throws IOException {
+		if( pipeline.getRn() != rn || pipeline.getGn() != gn || pipeline.getBn() != bn ) {
+			throw new IOException( directory + " holds " + rn + " " + gn + " " + bn + " histograms." );
+		}
+		removeUnlisted();
+		final ExecutorService merger = Executors.newSingleThreadExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, "merge" );
+				thread.setDaemon( true );
+				thread.setPriority( Thread.MIN_PRIORITY );
+				return thread;
+			}
+		});
+		final AtomicBoolean mergePending = new AtomicBoolean();
+		final Runnable merge = new Runnable() {
+			public void run() {
+				mergePending.set( false );
+				try {
+					while( merge() ) {
+					}
+				} catch( IOException e ) {
+					System.out.println( e + " Merging later." );
+				}
+			}
+		};
+		final ArrayList<String> urls = new ArrayList<String>();
+		final ArrayList<float[]> histograms = new ArrayList<float[]>();
+		try {
+			pipeline.run( input, new IngestionPipeline.Sink() {
+				public void accept( int sequence, String line, float[] histogram ) throws IOException {
+					urls.add( line );
+					histograms.add( histogram );
+					if( urls.size() == SEGMENT_RECORDS ) {
+						addSegment( urls, histograms );
+						if( mergePending.compareAndSet( false, true ) ) {
+							merger.execute( merge );
+						}
+					}
+				}
+			});
+			addSegment( urls, histograms );
+			merger.execute( merge );
+		} finally {
+			merger.shutdown();
+		}
+		try {
+			merger.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+		} catch( InterruptedException e ) {
+			throw new IOException( e );
+		}
+		Snapshot current = refresh();
+		System.out.println( directory + " has " + current.size() + " images in " + current.getSegments() + " segments." );
+	}
+
+	private void addSegment( ArrayList<String> urls, ArrayList<float[]> histograms ) throws IOException {
+		if( urls.isEmpty() ) {
+			return;
+		}
+		final String[] segmentUrls = urls.toArray( new String[ urls.size() ] );
+		final float[][] segmentHistograms = histograms.toArray( new float[ histograms.size() ][] );
+		urls.clear();
+		histograms.clear();
+		HistogramDatabase.RecordSource source = new HistogramDatabase.RecordSource() {
+			public int size() {
+				return segmentUrls.length;
+			}
+			public String getUrls( int i ) {
+				return segmentUrls[i];
+			}
+			public void read( int i, float[] dst ) {
+				System.arraycopy( segmentHistograms[i], 0, dst, 0, dst.length );
+			}
+		};
+		beginWriting();
+		try {
+			File segment = writeSegment( source );
+			if( !publish( Collections.<String>emptyList(), segment.getName() ) ) {
+				segment.delete();
+			}
+		} finally {
+			endWriting();
+		}
+	}
+
+	/*
+	 * Rewrites the segments of the current snapshot below MERGE_RECORDS as one
+	 * when there are at least MERGE_FACTOR of them. Returns whether it did.
+	 */
+	public boolean merge() throws IOException {
+		synchronized( mergeLock ) {
+			removeUnlisted();
+			Snapshot current = refresh();
+			final ArrayList<HistogramDatabase> small = new ArrayList<HistogramDatabase>();
+			final ArrayList<String> names = new ArrayList<String>();
+			for( int i = 0; i < current.engines.length; i++ ) {
+				HistogramDatabase db = current.engines[i].getDatabase();
+				if( db.size() < MERGE_RECORDS ) {
+					small.add( db );
+					names.add( current.names[i] );
+				}
+			}
+			if( small.size() < MERGE_FACTOR ) {
+				return false;
+			}
+			/* Live records of the small segments in manifest order */
+			final ArrayList<int[]> live = new ArrayList<int[]>();
+			for( int s = 0; s < small.size(); s++ ) {
+				for( int i = 0; i < small.get( s ).size(); i++ ) {
+					if( !small.get( s ).isDeleted( i ) ) {
+						live.add( new int[] { s, i } );
+					}
+				}
+			}
+			beginWriting();
+			try {
+				File segment = writeSegment( new HistogramDatabase.RecordSource() {
+					public int size() {
+						return live.size();
+					}
+					public String getUrls( int i ) {
+						return small.get( live.get( i )[0] ).getUrls( live.get( i )[1] );
+					}
+					public void read( int i, float[] dst ) {
+						small.get( live.get( i )[0] ).read( live.get( i )[1], dst );
+					}
+				});
+				if( !publish( names, segment.getName() ) ) {
+					segment.delete();
+					return false;
+				}
+			} finally {
+				endWriting();
+			}
+			for( String name : names ) {
+				File merged = new File( directory, name );
+				merged.delete();
+				HistogramDatabase.getTombstoneFile( merged ).delete();
+			}
+			System.out.println( "Merged " + names.size() + " segments of " + directory + " into " + live.size() + " images." );
+			return true;
+		}
+	}
+
+	/* A new segment forced to disk, so a published manifest never lists a segment a crash can lose. */
+	private File writeSegment( HistogramDatabase.RecordSource source ) throws IOException {
+		File segment = File.createTempFile( "segment-", ".cbir", directory );
+		try {
+			HistogramDatabase.write( segment, rn, gn, bn, null, source,
+					HistogramDatabase.getSmallestEncoding( source, 1 << ( rn + gn + bn ) ) );
+			FileChannel channel = FileChannel.open( segment.toPath(), StandardOpenOption.WRITE );
+			try {
+				channel.force( true );
+			} finally {
+				channel.close();
+			}
+		} catch( IOException e ) {
+			segment.delete();
+			throw e;
+		}
+		return segment;
+	}
+
+	/*
+	 * Replaces the removed segments by the added one in the manifest on disk,
+	 * which may be newer than our snapshot. Fails when one of the removed
+	 * segments is gone, another merge took it.
+	 */
+	private boolean publish( List<String> removed, String added ) throws IOException {
+		synchronized( publishLock ) {
+			RandomAccessFile lockFile = new RandomAccessFile( new File( directory, LOCK ), "rw" );
+			try {
+				FileLock lock = lockFile.getChannel().lock( 0, 1, false );
+				try {
+					List<String> manifest = readManifest( directory );
+					ArrayList<String> segments = new ArrayList<String>( manifest.subList( 2, manifest.size() ) );
+					if( !segments.containsAll( removed ) ) {
+						return false;
+					}
+					segments.removeAll( removed );
+					segments.add( added );
+					writeManifest( directory, rn, gn, bn, Long.valueOf( manifest.get( 1 ).trim() ) + 1, segments );
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+		refresh();
+		return true;
+	}
+
+	private static List<String> readManifest( File directory ) throws IOException {
+		try {
+			ArrayList<String> lines = new ArrayList<String>();
+			for( String line : Files.readAllLines( new File( directory, MANIFEST ).toPath(), StandardCharsets.UTF_8 ) ) {
+				if( line.trim().length() > 0 ) {
+					lines.add( line.trim() );
+				}
+			}
+			if( lines.size() < 2 ) {
+				throw new IOException( directory + " has a damaged manifest." );
+			}
+			return lines;
+		} catch( NoSuchFileException e ) {
+			throw new IOException( directory + " is not a segmented database." );
+		}
+	}
+
+	/* Written and forced next to the manifest and moved over it, so readers see the old or the new one. */
+	private static void writeManifest( File directory, int rn, int gn, int bn, long generation, List<String> segments ) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		builder.append( rn ).append( ' ' ).append( gn ).append( ' ' ).append( bn ).append( '\n' ).append( generation ).append( '\n' );
+		for( String segment : segments ) {
+			builder.append( segment ).append( '\n' );
+		}
+		File temporary = File.createTempFile( MANIFEST, ".tmp", directory );
+		try {
+			FileOutputStream stream = new FileOutputStream( temporary );
+			try {
+				stream.write( builder.toString().getBytes( StandardCharsets.UTF_8 ) );
+				stream.getChannel().force( true );
+			} finally {
+				stream.close();
+			}
+			Files.move( temporary.toPath(), new File( directory, MANIFEST ).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getRn() {
+		return rn;
+	}
+
+	public int getGn() {
+		return gn;
+	}
+
+	public int getBn() {
+		return bn;
+	}
+}
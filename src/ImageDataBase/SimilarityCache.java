@@ -0,0 +1,46 @@
+package ImageDataBase;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * One QuadraticForm per colour resolution and database directory, shared by
+ * every query in the process. The few most recently used are kept in memory,
+ * and each form persists its matrix and decomposition in a
+ * similarity_<rn>_<gn>_<bn>.cbsm sidecar in its directory, so they are
+ * computed once per resolution and every directory gets its sidecar.
+ */
+public class SimilarityCache {
+	private static final int CAPACITY = 4;
+
+	private static final Map<String, QuadraticForm> forms = new LinkedHashMap<String, QuadraticForm>( 16, 0.75f, true ) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, QuadraticForm> eldest ) {
+			return size() > CAPACITY;
+		}
+	};
+
+	/* directory may be null to keep the form in memory only. */
+	public static synchronized QuadraticForm get( int rn, int gn, int bn, File directory ) {
+		String key = rn + "_" + gn + "_" + bn + ( directory == null ? "" : " " + directory.getAbsolutePath() );
+		QuadraticForm form = forms.get( key );
+		if( form == null ) {
+			File sidecar = directory == null ? null : getSidecar( directory, rn, gn, bn );
+			form = new QuadraticForm( rn, gn, bn, sidecar );
+			forms.put( key, form );
+		}
+		return form;
+	}
+
+	/* The form of the database's resolution, with its sidecar next to the database. */
+	public static QuadraticForm get( HistogramDatabase db, File database ) {
+		return get( db.getRn(), db.getGn(), db.getBn(), database.getAbsoluteFile().getParentFile() );
+	}
+
+	public static File getSidecar( File directory, int rn, int gn, int bn ) {
+		return new File( directory, "similarity_" + rn + "_" + gn + "_" + bn + ".cbsm" );
+	}
+}
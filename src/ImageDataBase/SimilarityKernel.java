@@ -0,0 +1,284 @@
+package ImageDataBase;
+
+import java.util.Arrays;
+
+/*
+ * The similarity matrix as a convolution kernel. A[i][j] depends only on
+ * the offsets between the red, green and blue indexes of bins i and j, so
+ * Ax is the 3-D convolution of x, laid out on the nR x nG x nB grid, with
+ * one kernel value per offset, and the bins * bins matrix is never needed.
+ *
+ * Offsets run from -(n-1) to n-1 on every axis, so on a grid padded to
+ * 2nR x 2nG x 2nB the circular convolution equals the linear one. The
+ * kernel is symmetric and its spectrum is real, which gives
+ *
+ *   x'Ax = 1/N sum_k K_k |X_k|^2     (X the transform of the padded x)
+ *
+ * with one forward transform, and Ax with a forward and an inverse one.
+ * When x has few non-zero bins the kernel is summed over them directly,
+ * O(nnz^2) for x'Ax and O(nnz bins) for Ax, whichever is cheaper.
+ */
+class SimilarityKernel {
+	private final int nR, nG, nB;
+	private final int pR, pG, pB;
+	private final int bins;
+	private final int size;
+	/* Kernel on the padded grid, offset (r, g, b) at ((r & pR-1) * pG + (g & pG-1)) * pB + (b & pB-1) */
+	private final double[] kernel;
+	/* Real spectrum of the kernel divided by size, for the inverse transform */
+	private final double[] spectrum;
+	/* Grid coordinates of every bin */
+	private final int[] red, green, blue;
+	private final double transformCost;
+
+	/* Per thread buffers, so evaluations allocate nothing */
+	private static class Scratch {
+		final double[] re, im;
+		final double[] lineRe, lineIm;
+		final int[] nonZero;
+
+		Scratch( int size, int line, int bins ) {
+			re = new double[ size ];
+			im = new double[ size ];
+			lineRe = new double[ line ];
+			lineIm = new double[ line ];
+			nonZero = new int[ bins ];
+		}
+	}
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() {
+			return new Scratch( size, Math.max( pR, Math.max( pG, pB ) ), bins );
+		}
+	};
+
+	SimilarityKernel( int rn, int gn, int bn, float longestDistance ) {
+		nR = 1 << rn;
+		nG = 1 << gn;
+		nB = 1 << bn;
+		pR = 2 * nR;
+		pG = 2 * nG;
+		pB = 2 * nB;
+		bins = nR * nG * nB;
+		size = pR * pG * pB;
+		/* The scaled offsets as QuadraticForm spaces the bin centres */
+		kernel = new double[ size ];
+		for( int r = 1 - nR; r < nR; r++ ) {
+			for( int g = 1 - nG; g < nG; g++ ) {
+				for( int b = 1 - nB; b < nB; b++ ) {
+					double dr = (double) r * ( 256 / nR ) / 256, dg = (double) g * ( 256 / nG ) / 256, db = (double) b * ( 256 / nB ) / 256;
+					kernel[ index( r, g, b ) ] = 1 - Math.sqrt( dr * dr + dg * dg + db * db ) / longestDistance;
+				}
+			}
+		}
+		double[] re = kernel.clone(), im = new double[ size ];
+		transform( re, im, false, false, scratch.get() );
+		spectrum = new double[ size ];
+		for( int k = 0; k < size; k++ ) {
+			spectrum[k] = re[k] / size;
+		}
+		red = new int[ bins ];
+		green = new int[ bins ];
+		blue = new int[ bins ];
+		for( int i = 0; i < bins; i++ ) {
+			red[i] = i / ( nG * nB );
+			green[i] = i / nB % nG;
+			blue[i] = i % nB;
+		}
+		transformCost = size * ( Math.log( size ) / Math.log( 2 ) );
+	}
+
+	private int index( int r, int g, int b ) {
+		return ( ( r & ( pR - 1 ) ) * pG + ( g & ( pG - 1 ) ) ) * pB + ( b & ( pB - 1 ) );
+	}
+
+	/* x'Ax */
+	double getQuadratic( float[] x ) {
+		Scratch buffers = scratch.get();
+		int[] nonZero = buffers.nonZero;
+		int count = 0;
+		for( int i = 0; i < bins; i++ ) {
+			if( x[i] != 0 ) {
+				nonZero[ count++ ] = i;
+			}
+		}
+		if( (double) count * count <= transformCost ) {
+			double sum = 0;
+			for( int a = 0; a < count; a++ ) {
+				int i = nonZero[a];
+				double weighted = 0;
+				for( int b = 0; b < count; b++ ) {
+					int j = nonZero[b];
+					weighted += kernel[ index( red[i] - red[j], green[i] - green[j], blue[i] - blue[j] ) ] * x[j];
+				}
+				sum += x[i] * weighted;
+			}
+			return sum;
+		}
+		double[] re = buffers.re, im = buffers.im;
+		pad( x, re, im );
+		transform( re, im, false, true, buffers );
+		double sum = 0;
+		for( int k = 0; k < size; k++ ) {
+			sum += spectrum[k] * ( re[k] * re[k] + im[k] * im[k] );
+		}
+		return sum;
+	}
+
+	/* out = Ax */
+	void multiply( float[] x, double[] out ) {
+		Scratch buffers = scratch.get();
+		int[] nonZero = buffers.nonZero;
+		int count = 0;
+		for( int i = 0; i < bins; i++ ) {
+			if( x[i] != 0 ) {
+				nonZero[ count++ ] = i;
+			}
+		}
+		if( (double) count * bins <= 2 * transformCost ) {
+			for( int i = 0; i < bins; i++ ) {
+				double sum = 0;
+				for( int b = 0; b < count; b++ ) {
+					int j = nonZero[b];
+					sum += kernel[ index( red[i] - red[j], green[i] - green[j], blue[i] - blue[j] ) ] * x[j];
+				}
+				out[i] = sum;
+			}
+			return;
+		}
+		double[] re = buffers.re, im = buffers.im;
+		pad( x, re, im );
+		transform( re, im, false, true, buffers );
+		for( int k = 0; k < size; k++ ) {
+			re[k] *= spectrum[k];
+			im[k] *= spectrum[k];
+		}
+		transform( re, im, true, false, buffers );
+		for( int i = 0; i < bins; i++ ) {
+			out[i] = re[ ( red[i] * pG + green[i] ) * pB + blue[i] ];
+		}
+	}
+
+	private void pad( float[] x, double[] re, double[] im ) {
+		Arrays.fill( re, 0 );
+		Arrays.fill( im, 0 );
+		for( int i = 0; i < bins; i++ ) {
+			re[ ( red[i] * pG + green[i] ) * pB + blue[i] ] = x[i];
+		}
+	}
+
+	/*
+	 * 3-D transform of the padded grid, one axis after the other. Forward
+	 * transforms of padded data skip the lines that are still all zero, and
+	 * inverse ones run the axes the other way round and skip the lines
+	 * outside the bins that are read back.
+	 */
+	private void transform( double[] re, double[] im, boolean inverse, boolean padded, Scratch buffers ) {
+		int rows = padded ? nR : pR, columns = padded ? nG : pG;
+		if( !inverse ) {
+			for( int r = 0; r < rows; r++ ) {
+				for( int g = 0; g < columns; g++ ) {
+					fft( re, im, ( r * pG + g ) * pB, 1, pB, false, buffers );
+				}
+			}
+		}
+		for( int r = 0; r < rows; r++ ) {
+			if( inverse ) {
+				break;
+			}
+			for( int b = 0; b < pB; b++ ) {
+				fft( re, im, r * pG * pB + b, pB, pG, false, buffers );
+			}
+		}
+		for( int g = 0; g < pG; g++ ) {
+			for( int b = 0; b < pB; b++ ) {
+				fft( re, im, g * pB + b, pG * pB, pR, inverse, buffers );
+			}
+		}
+		if( inverse ) {
+			for( int r = 0; r < nR; r++ ) {
+				for( int b = 0; b < pB; b++ ) {
+					fft( re, im, r * pG * pB + b, pB, pG, true, buffers );
+				}
+			}
+			for( int r = 0; r < nR; r++ ) {
+				for( int g = 0; g < nG; g++ ) {
+					fft( re, im, ( r * pG + g ) * pB, 1, pB, true, buffers );
+				}
+			}
+		}
+	}
+
+	/* Twiddle factors and bit reversal for a transform of 1 << bits elements. */
+	private static final double[][] COSINES = new double[ 32 ][];
+	private static final double[][] SINES = new double[ 32 ][];
+	private static final int[][] REVERSED = new int[ 32 ][];
+
+	static {
+		for( int bits = 1; bits <= 9; bits++ ) {
+			int n = 1 << bits;
+			COSINES[ bits ] = new double[ n / 2 ];
+			SINES[ bits ] = new double[ n / 2 ];
+			for( int k = 0; k < n / 2; k++ ) {
+				COSINES[ bits ][k] = Math.cos( -2 * Math.PI * k / n );
+				SINES[ bits ][k] = Math.sin( -2 * Math.PI * k / n );
+			}
+			REVERSED[ bits ] = new int[ n ];
+			for( int i = 0; i < n; i++ ) {
+				REVERSED[ bits ][i] = Integer.reverse( i ) >>> ( 32 - bits );
+			}
+		}
+	}
+
+	/*
+	 * Transform of the n elements starting at offset, stride apart. Strided
+	 * lines are copied out first, power of two strides would otherwise keep
+	 * evicting each other from the cache.
+	 */
+	private static void fft( double[] re, double[] im, int offset, int stride, int n, boolean inverse, Scratch buffers ) {
+		if( stride == 1 ) {
+			fft( re, im, offset, n, inverse );
+			return;
+		}
+		double[] lineRe = buffers.lineRe, lineIm = buffers.lineIm;
+		for( int i = 0, j = offset; i < n; i++, j += stride ) {
+			lineRe[i] = re[j];
+			lineIm[i] = im[j];
+		}
+		fft( lineRe, lineIm, 0, n, inverse );
+		for( int i = 0, j = offset; i < n; i++, j += stride ) {
+			re[j] = lineRe[i];
+			im[j] = lineIm[i];
+		}
+	}
+
+	/* In place radix-2 transform of n contiguous elements starting at offset. Unscaled. */
+	private static void fft( double[] re, double[] im, int offset, int n, boolean inverse ) {
+		int bits = Integer.numberOfTrailingZeros( n );
+		int[] reversed = REVERSED[ bits ];
+		for( int i = 1; i < n; i++ ) {
+			int j = reversed[i];
+			if( i < j ) {
+				int a = offset + i, b = offset + j;
+				double t = re[a]; re[a] = re[b]; re[b] = t;
+				t = im[a]; im[a] = im[b]; im[b] = t;
+			}
+		}
+		double[] cosines = COSINES[ bits ], sines = SINES[ bits ];
+		double sign = inverse ? -1 : 1;
+		for( int half = 1, step = n / 2; half < n; half <<= 1, step >>= 1 ) {
+			for( int start = 0; start < n; start += 2 * half ) {
+				for( int k = 0; k < half; k++ ) {
+					double wRe = cosines[ k * step ], wIm = sign * sines[ k * step ];
+					int a = offset + start + k, b = a + half;
+					double tRe = re[b] * wRe - im[b] * wIm;
+					double tIm = re[b] * wIm + im[b] * wRe;
+					re[b] = re[a] - tRe;
+					im[b] = im[a] - tIm;
+					re[a] += tRe;
+					im[a] += tIm;
+				}
+			}
+		}
+	}
+}
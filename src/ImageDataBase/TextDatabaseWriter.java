@@ -0,0 +1,113 @@
+package ImageDataBase;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * Writes a text database while it is built. The ingestion pipeline hands
+ * over histograms in line order and each one goes straight through one
+ * buffered writer, so only the buffer is held in memory.
+ *
+ * Every CHECKPOINT_RECORDS records, or CHECKPOINT_INTERVAL after the last
+ * checkpoint, the output is forced to disk and <output>.checkpoint records
+ * the next line of the url list and the length of the output written up to
+ * it. A build that finds a checkpoint cuts the output back to that length
+ * and goes on from that line, so an interrupted build repeats at most the
+ * images since its last checkpoint. The checkpoint is removed once the
+ * build completes.
+ */
+class TextDatabaseWriter implements IngestionPipeline.Sink {
+	private static final int CHECKPOINT_RECORDS = 1000;
+	private static final long CHECKPOINT_INTERVAL = 10000;
+
+	private final File checkpoint;
+	private final FileOutputStream stream;
+	private final Writer writer;
+	private final int first;
+	private int next;
+	private int records;
+	private long lastCheckpoint;
+
+	/* A new database in output, or the rest of an interrupted build of it at the same resolution. */
+	TextDatabaseWriter( File output, int rn, int gn, int bn ) throws IOException {
+		checkpoint = getCheckpointFile( output );
+		String header = rn + " " + gn + " " + bn + " ";
+		long length = 0;
+		if( checkpoint.exists() && output.exists() ) {
+			String[] temp = new String( Files.readAllBytes( checkpoint.toPath() ), StandardCharsets.US_ASCII ).trim().split(" ");
+			next = Integer.valueOf( temp[0] );
+			length = Long.valueOf( temp[1] );
+			BufferedReader reader = new BufferedReader( new FileReader( output ) );
+			try {
+				if( !header.equals( reader.readLine() ) || output.length() < length ) {
+					throw new IOException( output + " does not match its checkpoint, remove " + checkpoint + " to build it again." );
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		first = next;
+		stream = new FileOutputStream( output, length > 0 );
+		stream.getChannel().truncate( length );
+		writer = new BufferedWriter( new OutputStreamWriter( stream ) );
+		if( length == 0 ) {
+			writer.write( header + "\n" );
+			checkpoint();
+		} else {
+			System.out.println( "Resuming " + output + " at line " + ( first + 1 ) + " of the url list." );
+			lastCheckpoint = System.currentTimeMillis();
+		}
+	}
+
+	static File getCheckpointFile( File output ) {
+		return new File( output.getPath() + ".checkpoint" );
+	}
+
+	/* The first line of the url list still to be built */
+	int getFirst() {
+		return first;
+	}
+
+	public void accept( int sequence, String urls, float[] histogram ) throws IOException {
+		writer.write( urls + " " );
+		for( int j = 0; j < histogram.length; j++ ) {
+			writer.write( histogram[j] + " " );
+		}
+		writer.write( "\n" );
+		next = sequence + 1;
+		if( ++records >= CHECKPOINT_RECORDS || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL ) {
+			checkpoint();
+		}
+	}
+
+	private void checkpoint() throws IOException {
+		writer.flush();
+		stream.getChannel().force( false );
+		File temporary = File.createTempFile( checkpoint.getName(), ".tmp", checkpoint.getAbsoluteFile().getParentFile() );
+		try {
+			Files.write( temporary.toPath(), ( next + " " + stream.getChannel().size() + "\n" ).getBytes( StandardCharsets.US_ASCII ) );
+			Files.move( temporary.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			temporary.delete();
+		}
+		records = 0;
+		lastCheckpoint = System.currentTimeMillis();
+	}
+
+	/* Complete drops the checkpoint, otherwise the last one is kept for the next build to resume from. */
+	void close( boolean complete ) throws IOException {
+		writer.close();
+		if( complete ) {
+			checkpoint.delete();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package ImageDataBase;
+
+/*
+ * Keeps the K smallest (distance, record) pairs seen so far in a bounded
+ * max-heap of primitives, so a scan needs O(K) memory and O(N log K) time.
+ * Equal distances are ordered by record index, which makes the result the
+ * same as a stable sort of the whole scan.
+ */
+class TopK {
+	private final int capacity;
+	private final float[] distances;
+	private final int[] records;
+	private int size;
+
+	public TopK( int capacity ) {
+		this.capacity = Math.max( 0, capacity );
+		distances = new float[ this.capacity ];
+		records = new int[ this.capacity ];
+	}
+
+	public boolean offer( float distance, int record ) {
+		if( size < capacity ) {
+			distances[ size ] = distance;
+			records[ size ] = record;
+			siftUp( size++ );
+			return true;
+		}
+		if( capacity == 0 || !isWorse( distances[0], records[0], distance, record ) ) {
+			return false;
+		}
+		distances[0] = distance;
+		records[0] = record;
+		siftDown( 0 );
+		return true;
+	}
+
+	public void addAll( TopK other ) {
+		for( int i = 0; i < other.size; i++ ) {
+			offer( other.distances[i], other.records[i] );
+		}
+	}
+
+	/* The distance a candidate has to beat, infinite until K results are held. */
+	public float threshold() {
+		return size < capacity || capacity == 0 ? Float.POSITIVE_INFINITY : distances[0];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/* Records ordered by increasing distance. */
+	public int[] sortedRecords() {
+		int[] order = sortedHeapIndexes();
+		int[] result = new int[ size ];
+		for( int i = 0; i < size; i++ ) {
+			result[i] = records[ order[i] ];
+		}
+		return result;
+	}
+
+	public float[] sortedDistances() {
+		int[] order = sortedHeapIndexes();
+		float[] result = new float[ size ];
+		for( int i = 0; i < size; i++ ) {
+			result[i] = distances[ order[i] ];
+		}
+		return result;
+	}
+
+	private int[] sortedHeapIndexes() {
+		/* Insertion sort of heap slots, K is small. */
+		int[] order = new int[ size ];
+		for( int i = 0; i < size; i++ ) {
+			int j = i;
+			while( j > 0 && isWorse( distances[ order[j-1] ], records[ order[j-1] ], distances[i], records[i] ) ) {
+				order[j] = order[j-1];
+				j--;
+			}
+			order[j] = i;
+		}
+		return order;
+	}
+
+	/* True when (d1, r1) ranks after (d2, r2). NaN ranks last. */
+	private static boolean isWorse( float d1, int r1, float d2, int r2 ) {
+		int c = Float.compare( d1, d2 );
+		return c > 0 || ( c == 0 && r1 > r2 );
+	}
+
+	private void siftUp( int i ) {
+		while( i > 0 ) {
+			int parent = ( i - 1 ) >> 1;
+			if( !isWorse( distances[i], records[i], distances[parent], records[parent] ) ) {
+				break;
+			}
+			swap( i, parent );
+			i = parent;
+		}
+	}
+
+	private void siftDown( int i ) {
+		while( true ) {
+			int left = 2 * i + 1;
+			if( left >= size ) {
+				break;
+			}
+			int worst = left;
+			int right = left + 1;
+			if( right < size && isWorse( distances[right], records[right], distances[left], records[left] ) ) {
+				worst = right;
+			}
+			if( !isWorse( distances[worst], records[worst], distances[i], records[i] ) ) {
+				break;
+			}
+			swap( i, worst );
+			i = worst;
+		}
+	}
+
+	private void swap( int i, int j ) {
+		float distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+		int record = records[i];
+		records[i] = records[j];
+		records[j] = record;
+	}
+}
@@ -0,0 +1,353 @@
+package ImageDataBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Vantage point tree over the records of a database, for exact nearest
+ * neighbour and range queries that visit only part of the database.
+ *
+ * With a positive semidefinite similarity matrix sqrt(d'Ad) is a metric, so
+ * for a vantage point v and the distance d of the query to it, a record x
+ * is at least |d - dist(v, x)| from the query. Every node keeps the largest
+ * distance of its inside half and the smallest of its outside half and a
+ * half is only searched when that bound can beat the current K-th best.
+ *
+ * The tree is an ordering of the records: a node over positions [lo, hi) has
+ * its vantage point at lo, the inside half from lo + 1 to split[lo] and the
+ * outside half from there to hi. Ranges of at most a bucket are leaves and
+ * scanned. Saved as "<database>.vpt" (little endian): magic, version,
+ * records, bucket, the length of the database file, then order, split,
+ * insideMax and outsideMin for every position.
+ *
+ * Deleted records stay in the tree as vantage points and are left out of
+ * the results. Appending or compacting makes the index stale, it is then
+ * ignored until it is built again.
+ */
+public class VpTree {
+	public static final int MAGIC = 0x50564243; // "CBVP"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int DEFAULT_BUCKET = 16;
+	/* Relative slack for rounding in the bounds */
+	private static final float SLACK = 1e-5f;
+
+	private final int records;
+	private final int bucket;
+	private final long databaseLength;
+	private final int[] order;
+	private final int[] split;
+	private final float[] insideMax;
+	private final float[] outsideMin;
+
+	private VpTree( int records, int bucket, long databaseLength ) {
+		this.records = records;
+		this.bucket = bucket;
+		this.databaseLength = databaseLength;
+		order = new int[ records ];
+		split = new int[ records ];
+		insideMax = new float[ records ];
+		outsideMin = new float[ records ];
+	}
+
+	/* Distances as the database is scanned, see DatabaseScan, counting every evaluation. */
+	private static class Search {
+		final HistogramDatabase db;
+		final float[] query;
+		final QuadraticForm form;
+		final DatabaseScan.Expansion expansion;
+		final float[] scratch;
+		long evaluations;
+
+		Search( HistogramDatabase db, float[] query, QuadraticForm form ) {
+			this.db = db;
+			this.query = query;
+			this.form = form;
+			expansion = db.hasSelfTerms() ? new DatabaseScan.Expansion( query, form ) : null;
+			scratch = new float[ db.getDimensions() ];
+		}
+
+		float distance( int record ) {
+			evaluations++;
+			if( expansion != null ) {
+				return expansion.distance( db, record );
+			}
+			db.read( record, scratch );
+			return form == null ? QuadraticForm.getEuclideanDistance( query, scratch ) : form.getDistance( query, scratch );
+		}
+	}
+
+	public static File getIndexFile( File database ) {
+		return new File( database.getPath() + ".vpt" );
+	}
+
+	/* Builds the tree of a database and saves it next to it. */
+	public static VpTree build( File database, int bucket ) throws IOException {
+		HistogramDatabase db = HistogramDatabase.open( database );
+		QuadraticForm form = db.isProjected() ? null : SimilarityCache.get( db, database );
+		if( form != null && !form.isPositiveSemidefinite() ) {
+			throw new IOException( "The similarity matrix is not positive semidefinite, the distance is not a metric." );
+		}
+		VpTree tree = new VpTree( db.size(), Math.max( 1, bucket > 0 ? bucket : DEFAULT_BUCKET ), database.length() );
+		for( int i = 0; i < tree.records; i++ ) {
+			tree.order[i] = i;
+		}
+		float[] distances = new float[ tree.records ];
+		float[] vantage = new float[ db.getDimensions() ];
+		AtomicLong evaluations = new AtomicLong();
+		tree.build( db, form, 0, tree.records, distances, vantage, new Random( 1 ), evaluations );
+		System.out.println( "Built the index with " + evaluations.get() + " distances for " + tree.records + " records." );
+		tree.save( getIndexFile( database ) );
+		return tree;
+	}
+
+	private void build( HistogramDatabase db, QuadraticForm form, int lo, int hi, float[] distances, float[] vantage, Random random, AtomicLong evaluations ) {
+		if( hi - lo <= bucket ) {
+			return;
+		}
+		swap( order, distances, lo, lo + random.nextInt( hi - lo ) );
+		db.read( order[ lo ], vantage );
+		Search search = new Search( db, vantage, form );
+		for( int p = lo + 1; p < hi; p++ ) {
+			distances[p] = search.distance( order[p] );
+		}
+		evaluations.addAndGet( search.evaluations );
+
+		/* Median split, the inside half is no farther from the vantage point than the outside half */
+		int middle = ( lo + 1 + hi ) >>> 1;
+		select( distances, lo + 1, hi, middle );
+		float largest = Float.NEGATIVE_INFINITY;
+		for( int p = lo + 1; p < middle; p++ ) {
+			largest = Math.max( largest, distances[p] );
+		}
+		float smallest = Float.POSITIVE_INFINITY;
+		for( int p = middle; p < hi; p++ ) {
+			smallest = Math.min( smallest, distances[p] );
+		}
+		split[ lo ] = middle;
+		insideMax[ lo ] = largest;
+		outsideMin[ lo ] = smallest;
+		build( db, form, lo + 1, middle, distances, vantage, random, evaluations );
+		build( db, form, middle, hi, distances, vantage, random, evaluations );
+	}
+
+	/* Reorders [from, to) so position k holds the distance it would hold sorted, smaller ones before it. */
+	private void select( float[] distances, int from, int to, int k ) {
+		int left = from, right = to - 1;
+		while( left < right ) {
+			float pivot = distances[ ( left + right ) >>> 1 ];
+			int i = left, j = right;
+			while( i <= j ) {
+				while( distances[i] < pivot ) {
+					i++;
+				}
+				while( distances[j] > pivot ) {
+					j--;
+				}
+				if( i <= j ) {
+					swap( order, distances, i++, j-- );
+				}
+			}
+			if( k <= j ) {
+				right = j;
+			} else if( k >= i ) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static void swap( int[] order, float[] distances, int i, int j ) {
+		int record = order[i];
+		order[i] = order[j];
+		order[j] = record;
+		float distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+	}
+
+	/* The index of a database, or null when there is none or it no longer matches the database. */
+	public static VpTree load( File database, HistogramDatabase db ) throws IOException {
+		File file = getIndexFile( database );
+		if( !file.exists() ) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			if( header.getInt( 0 ) != MAGIC || header.getInt( 4 ) != VERSION ) {
+				throw new IOException( file + " is not an index." );
+			}
+			VpTree tree = new VpTree( header.getInt( 8 ), header.getInt( 12 ), header.getLong( 16 ) );
+			if( tree.records != db.size() || tree.databaseLength != database.length() ) {
+				System.out.println( "The index " + file + " is out of date, build it again." );
+				return null;
+			}
+			ByteBuffer body = channel.map( FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 16L * tree.records ).order( ByteOrder.LITTLE_ENDIAN );
+			body.asIntBuffer().get( tree.order );
+			body.position( 4 * tree.records );
+			body.slice().order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().get( tree.split );
+			body.position( 8 * tree.records );
+			body.slice().order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer().get( tree.insideMax );
+			body.position( 12 * tree.records );
+			body.slice().order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer().get( tree.outsideMin );
+			return tree;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void save( File file ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + 16 * records ).order( ByteOrder.LITTLE_ENDIAN );
+		buffer.putInt( MAGIC ).putInt( VERSION ).putInt( records ).putInt( bucket ).putLong( databaseLength ).putLong( 0 );
+		for( int p = 0; p < records; p++ ) {
+			buffer.putInt( order[p] );
+		}
+		for( int p = 0; p < records; p++ ) {
+			buffer.putInt( split[p] );
+		}
+		for( int p = 0; p < records; p++ ) {
+			buffer.putFloat( insideMax[p] );
+		}
+		for( int p = 0; p < records; p++ ) {
+			buffer.putFloat( outsideMin[p] );
+		}
+		buffer.flip();
+		/* Written next to the index and moved over it, so a reader never sees part of one */
+		File temporary = new File( file.getPath() + ".tmp" );
+		RandomAccessFile raf = new RandomAccessFile( temporary, "rw" );
+		try {
+			raf.setLength( 0 );
+			FileChannel channel = raf.getChannel();
+			while( buffer.hasRemaining() ) {
+				channel.write( buffer );
+			}
+		} finally {
+			raf.close();
+		}
+		Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/* The K nearest records, adds the number of distances computed to evaluations. */
+	public TopK nearest( HistogramDatabase db, float[] query, QuadraticForm form, int K, AtomicLong evaluations ) {
+		Search search = new Search( db, query, form );
+		TopK best = new TopK( K );
+		nearest( search, 0, records, best );
+		if( evaluations != null ) {
+			evaluations.addAndGet( search.evaluations );
+		}
+		return best;
+	}
+
+	private void nearest( Search search, int lo, int hi, TopK best ) {
+		if( hi - lo <= bucket ) {
+			for( int p = lo; p < hi; p++ ) {
+				if( !search.db.isDeleted( order[p] ) ) {
+					best.offer( search.distance( order[p] ), order[p] );
+				}
+			}
+			return;
+		}
+		float d = search.distance( order[ lo ] );
+		if( !search.db.isDeleted( order[ lo ] ) ) {
+			best.offer( d, order[ lo ] );
+		}
+		int middle = split[ lo ];
+		float inside = d - insideMax[ lo ];
+		float outside = outsideMin[ lo ] - d;
+		/* The half the query falls in first, it lowers the threshold for the other one */
+		if( inside <= outside ) {
+			if( middle > lo + 1 && isReachable( inside, d, best.threshold() ) ) {
+				nearest( search, lo + 1, middle, best );
+			}
+			if( isReachable( outside, d, best.threshold() ) ) {
+				nearest( search, middle, hi, best );
+			}
+		} else {
+			if( isReachable( outside, d, best.threshold() ) ) {
+				nearest( search, middle, hi, best );
+			}
+			if( middle > lo + 1 && isReachable( inside, d, best.threshold() ) ) {
+				nearest( search, lo + 1, middle, best );
+			}
+		}
+	}
+
+	/* Every record within radius of the query ordered by distance, adds the number of distances computed to evaluations. */
+	public ArrayList<Node> range( HistogramDatabase db, float[] query, QuadraticForm form, float radius, AtomicLong evaluations ) {
+		Search search = new Search( db, query, form );
+		final ArrayList<Integer> found = new ArrayList<Integer>();
+		final ArrayList<Float> distances = new ArrayList<Float>();
+		range( search, 0, records, radius, found, distances );
+		if( evaluations != null ) {
+			evaluations.addAndGet( search.evaluations );
+		}
+		Integer[] indexes = new Integer[ found.size() ];
+		for( int i = 0; i < indexes.length; i++ ) {
+			indexes[i] = i;
+		}
+		Arrays.sort( indexes, new Comparator<Integer>() {
+			public int compare( Integer a, Integer b ) {
+				int c = Float.compare( distances.get( a ), distances.get( b ) );
+				return c != 0 ? c : Integer.compare( found.get( a ), found.get( b ) );
+			}
+		});
+		ArrayList<Node> resultList = new ArrayList<Node>();
+		for( Integer i : indexes ) {
+			Node newNode = new Node();
+			newNode.distance = distances.get( i );
+			newNode.urls = db.getUrls( found.get( i ) );
+			resultList.add( newNode );
+		}
+		return resultList;
+	}
+
+	private void range( Search search, int lo, int hi, float radius, ArrayList<Integer> found, ArrayList<Float> distances ) {
+		if( hi - lo <= bucket ) {
+			for( int p = lo; p < hi; p++ ) {
+				if( !search.db.isDeleted( order[p] ) ) {
+					float distance = search.distance( order[p] );
+					if( distance <= radius ) {
+						found.add( order[p] );
+						distances.add( distance );
+					}
+				}
+			}
+			return;
+		}
+		float d = search.distance( order[ lo ] );
+		if( !search.db.isDeleted( order[ lo ] ) && d <= radius ) {
+			found.add( order[ lo ] );
+			distances.add( d );
+		}
+		int middle = split[ lo ];
+		if( middle > lo + 1 && isReachable( d - insideMax[ lo ], d, radius ) ) {
+			range( search, lo + 1, middle, radius, found, distances );
+		}
+		if( isReachable( outsideMin[ lo ] - d, d, radius ) ) {
+			range( search, middle, hi, radius, found, distances );
+		}
+	}
+
+	/* False only when the bound is beyond the threshold by more than rounding. */
+	private static boolean isReachable( float bound, float d, float threshold ) {
+		return bound <= threshold + SLACK * ( d + Math.abs( bound ) + threshold );
+	}
+
+	public int getRecords() {
+		return records;
+	}
+}